@@ -0,0 +1,121 @@
+package deepNN;
+
+import deepNN.loss.LossFunction;
+import deepNN.optimizer.Optimizer;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Writes training checkpoints in the background.
+ * A checkpoint copies the parameters and the optimizer state into snapshot matrices, allocated once, and a writer
+ * thread saves the snapshot as a model file with the number of trained epochs and the optimizer step, so training
+ * only waits for the copy and never for the disk.
+ * If the previous checkpoint is still being written the new one is skipped, except for the final one.
+ */
+final class Checkpointer implements AutoCloseable {
+
+    private final Path path;
+    private final Layer[] layers;
+    private final Layer[] snapshot;
+    private final LossFunction lossFunction;
+    private final long randSeed;
+    private final int miniBatchSize;
+    private final int iterations;
+    private final float learningRate;
+    private final float lambda;
+    private final Optimizer optimizer;
+    private final ExecutorService writer;
+    private Future<?> pending;
+    private volatile IOException error;
+
+    /**
+     * Creates a checkpointer for the parameters of layers, see ModelFile.write for the other values
+     */
+    Checkpointer(Path path, Layer[] layers, LossFunction lossFunction, long randSeed, int miniBatchSize, int iterations,
+                 float learningRate, float lambda, Optimizer optimizer) {
+        this.path = path;
+        this.layers = layers;
+        this.snapshot = new Layer[layers.length];
+        for (int l = 0; l < layers.length; l++) {
+            snapshot[l] = layers[l].freeze();
+            snapshot[l].allocateOptimizer(optimizer.stateSize());
+        }
+        this.lossFunction = lossFunction;
+        this.randSeed = randSeed;
+        this.miniBatchSize = miniBatchSize;
+        this.iterations = iterations;
+        this.learningRate = learningRate;
+        this.lambda = lambda;
+        this.optimizer = optimizer;
+        this.writer = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "checkpoint-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Save the current parameters and optimizer state after the given number of trained epochs
+     * @param optimizerStep number of optimizer updates so far
+     * @param wait true to wait for a checkpoint still being written instead of skipping this one
+     * @return false if skipped
+     */
+    boolean save(int epochs, int optimizerStep, boolean wait) {
+        if(pending != null) {
+            if(!pending.isDone() && !wait)
+                return false;
+            await();
+        }
+        for (int l = 0; l < layers.length; l++) {
+            Matrix2.copy(layers[l].getWeights(), snapshot[l].getWeights());
+            Matrix2.copy(layers[l].getBias(), snapshot[l].getBias());
+            for (int i = 0; i < optimizer.stateSize(); i++) {
+                Matrix2.copy(layers[l].weightsState()[i], snapshot[l].weightsState()[i]);
+                Matrix2.copy(layers[l].biasState()[i], snapshot[l].biasState()[i]);
+            }
+        }
+        pending = writer.submit(() -> {
+            try {
+                ModelFile.write(path, snapshot, lossFunction, randSeed, miniBatchSize, iterations, learningRate, lambda, epochs,
+                        optimizer, optimizerStep);
+            } catch (IOException e) {
+                error = e;
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Wait for the last checkpoint and stop the writer
+     * @throws IOException if a checkpoint could not be written
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if(pending != null) {
+                await();
+            }
+        } finally {
+            writer.shutdown();
+        }
+        if(error != null)
+            throw error;
+    }
+
+    private void await() {
+        try {
+            pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while writing a checkpoint", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Error writing a checkpoint", e.getCause());
+        }
+    }
+
+}
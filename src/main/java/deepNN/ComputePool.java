@@ -0,0 +1,136 @@
+package deepNN;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Thread pool used by Matrix2 operations to split big work across cores.
+ * Operations smaller than the threshold (measured in multiply-adds for products and in elements for
+ * element-wise operations and reductions) run serially in the calling thread.
+ * Element-wise work is split in ranges of CHUNK_SIZE elements. The size is fixed so reductions
+ * combine the same partial results in the same order no matter how many threads run them.
+ *
+ * Matrix2 methods without an explicit pool use the one bound to the current thread, or the common pool if none.
+ */
+public final class ComputePool {
+
+    /** Default amount of work below which an operation is not split */
+    public static final long DEFAULT_THRESHOLD = 64 * 64 * 64;
+
+    /** Elements per range when splitting element-wise work */
+    static final int CHUNK_SIZE = 1 << 14;
+
+    /** Run everything in the calling thread */
+    public static final ComputePool SERIAL = new ComputePool(null, Long.MAX_VALUE);
+
+    private static final ComputePool COMMON = new ComputePool(ForkJoinPool.commonPool(), DEFAULT_THRESHOLD);
+    private static final ThreadLocal<ComputePool> CURRENT = new ThreadLocal<>();
+
+    private final ForkJoinPool pool;
+    private final long threshold;
+
+    /**
+     * Creates a compute pool
+     * @param pool fork/join pool where work is split, null to run serially
+     * @param threshold minimum amount of work of an operation to be split across threads
+     */
+    public ComputePool(ForkJoinPool pool, long threshold) {
+        if(threshold < 1)
+            throw new IllegalArgumentException("Invalid threshold: " + threshold);
+        this.pool = pool;
+        this.threshold = threshold;
+    }
+
+    public ComputePool(ForkJoinPool pool) {
+        this(pool, DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * Pool backed by ForkJoinPool.commonPool()
+     */
+    public static ComputePool common() {
+        return COMMON;
+    }
+
+    /**
+     * Pool bound to the current thread, common pool if none
+     */
+    public static ComputePool current() {
+        ComputePool current = CURRENT.get();
+        return current != null ? current : COMMON;
+    }
+
+    /**
+     * Bind a pool to the current thread, null to clear the binding.
+     * Returns the previous one (null if none was bound), so it can be restored with another bind call.
+     */
+    public static ComputePool bind(ComputePool pool) {
+        ComputePool previous = CURRENT.get();
+        //set(null) instead of remove() keeps the thread-local entry, so bind and restore don't allocate
+        CURRENT.set(pool);
+        return previous;
+    }
+
+    public ForkJoinPool pool() {
+        return pool;
+    }
+
+    public long threshold() {
+        return threshold;
+    }
+
+    public int parallelism() {
+        return pool != null ? pool.getParallelism() : 1;
+    }
+
+    /**
+     * True if an operation of the given amount of work should be split across threads
+     */
+    public boolean isParallel(long work) {
+        return pool != null && pool.getParallelism() > 1 && work >= threshold;
+    }
+
+    /**
+     * Run task over [0, n) split in ranges of grain elements (the last one can be shorter).
+     * Ranges are computed in parallel and the call returns when all of them are done.
+     */
+    void forEachRange(int n, int grain, RangeTask task) {
+        pool.invoke(new RangeAction(0, n, Math.max(1, grain), task));
+    }
+
+    /**
+     * Work over a range [start, end)
+     */
+    interface RangeTask {
+        void run(int start, int end);
+    }
+
+    private static class RangeAction extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final int start;
+        private final int end;
+        private final int grain;
+        private final RangeTask task;
+
+        RangeAction(int start, int end, int grain, RangeTask task) {
+            this.start = start;
+            this.end = end;
+            this.grain = grain;
+            this.task = task;
+        }
+
+        @Override
+        protected void compute() {
+            int size = end - start;
+            if(size <= grain) {
+                task.run(start, end);
+                return;
+            }
+
+            //Split in two, keeping borders aligned to grain
+            int mid = start + Math.max(1, size / 2 / grain) * grain;
+            invokeAll(new RangeAction(start, mid, grain, task), new RangeAction(mid, end, grain, task));
+        }
+    }
+
+}
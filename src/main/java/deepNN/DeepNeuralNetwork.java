@@ -12,12 +12,13 @@ import deepNN.activation.SoftmaxFunction;
 import deepNN.loss.BinaryCrossEntropyLoss;
 import deepNN.loss.LossFunction;
 import deepNN.loss.MultiClassCrossEntropyLoss;
-import utils.MLUtils;
+import deepNN.optimizer.Optimizer;
+import deepNN.optimizer.SgdOptimizer;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Deep Neural Network with L hidden layers
@@ -32,16 +33,32 @@ public class DeepNeuralNetwork {
     public static final LossFunction BINARY_CROSS_ENTROPY = new BinaryCrossEntropyLoss();
     public static final LossFunction MULTI_CLASS_CROSS_ENTROPY = new MultiClassCrossEntropyLoss();
 
-    private final int[] layerDims;
+    /**
+     * How training threads work together
+     */
+    public enum TrainingMode {
+        /** Each mini-batch is split across threads, gradients are added before a single update */
+        SYNCHRONOUS,
+        /** Each thread takes whole mini-batches and updates the shared parameters without locks (Hogwild) */
+        ASYNCHRONOUS
+    }
+
     private final long randSeed;
     private final int miniBatchSize;
     private final int iterations;
     private final float learningRate;
     private final float lambda;
-    private final ActivationFunction hiddenActivationFunc;
-    private final ActivationFunction outputActivationFunc;
     private final LossFunction lossFunction;
-    private Map<String, Matrix2> parameters;
+    private final Layer[] layers;
+    private ComputePool computePool = ComputePool.common();
+    private int trainingThreads = 1;
+    private TrainingMode trainingMode = TrainingMode.SYNCHRONOUS;
+    private Replica[] replicas;
+    private int checkpointInterval = 100;
+    private int trainedEpochs;
+    private boolean warmStart;
+    private Optimizer optimizer = new SgdOptimizer();
+    private final AtomicInteger optimizerStep = new AtomicInteger();
 
     /**
      * Creates a new neural network
@@ -58,340 +75,799 @@ public class DeepNeuralNetwork {
     public DeepNeuralNetwork(long randSeed, int[] layerDims, int miniBatchSize, int iterations, float learningRate,
                              float lambda, ActivationFunction hiddenActivationFunc, ActivationFunction outputActivationFunc,
                              LossFunction lossFunction) {
-        this.layerDims = layerDims;
         this.randSeed = randSeed;
         this.miniBatchSize = miniBatchSize;
         this.iterations = iterations;
         this.learningRate = learningRate;
         this.lambda = lambda;
-        this.hiddenActivationFunc = hiddenActivationFunc;
-        this.outputActivationFunc = outputActivationFunc;
         this.lossFunction = lossFunction;
+        this.layers = createLayers(layerDims, hiddenActivationFunc, outputActivationFunc);
+        initializeParameters(randSeed);
+    }
+
+    /**
+     * Creates a network with the settings, parameters and optimizer state of a model file, nothing is randomly
+     * initialized. An optimizer of a class other than those of deepNN.optimizer can't be created from the file,
+     * the network gets SgdOptimizer and the state is not read.
+     */
+    private DeepNeuralNetwork(ModelFile file) {
+        this.randSeed = file.randSeed;
+        this.miniBatchSize = file.miniBatchSize;
+        this.iterations = file.iterations;
+        this.learningRate = file.learningRate;
+        this.lambda = file.lambda;
+        this.lossFunction = file.lossFunction;
+        this.layers = createLayers(file.layerDims, file.hiddenActivation, file.outputActivation);
+        this.trainedEpochs = file.epochs;
+        this.warmStart = true;
+        for (int l = 0; l < layers.length; l++) {
+            file.readParameters(l, layers[l].getWeights(), layers[l].getBias());
+        }
+        Optimizer fileOptimizer = file.readOptimizer();
+        if(fileOptimizer != null) {
+            setOptimizer(fileOptimizer);
+            this.optimizerStep.set(file.readOptimizerState(fileOptimizer, layers));
+        }
+    }
+
+    /**
+     * Set the pool used to split matrix operations across cores during train and predict.
+     * Use ComputePool.SERIAL to run everything in the calling thread.
+     */
+    public void setComputePool(ComputePool computePool) {
+        if(computePool == null)
+            throw new IllegalArgumentException("Invalid compute pool: null");
+        this.computePool = computePool;
+    }
+
+    public ComputePool getComputePool() {
+        return computePool;
+    }
+
+    /**
+     * Set the number of threads used by data-parallel training, which run in the compute pool. Default 1.
+     * In SYNCHRONOUS mode each mini-batch is split in that many shards whose gradients are computed in parallel and
+     * added before updating the parameters. The result is the same as with a single thread, except for float rounding.
+     * @see #setTrainingMode(TrainingMode)
+     */
+    public void setTrainingThreads(int trainingThreads) {
+        if(trainingThreads < 1)
+            throw new IllegalArgumentException("Invalid training threads: " + trainingThreads);
+        this.trainingThreads = trainingThreads;
+    }
+
+    public int getTrainingThreads() {
+        return trainingThreads;
+    }
+
+    /**
+     * Set how training threads work together, only used with more than one training thread.
+     * In ASYNCHRONOUS mode each thread takes the next mini-batch of the epoch and applies its update straight to the
+     * shared weights, without locks or waiting for the other threads. Updates can overlap and read parameters that
+     * are being written, which adds some noise to SGD but removes all synchronization except at the end of each epoch.
+     * Results are not reproducible across runs.
+     */
+    public void setTrainingMode(TrainingMode trainingMode) {
+        if(trainingMode == null)
+            throw new IllegalArgumentException("Invalid training mode: null");
+        this.trainingMode = trainingMode;
+    }
+
+    public TrainingMode getTrainingMode() {
+        return trainingMode;
+    }
+
+    /**
+     * Set every how many epochs a checkpoint is written when training with a checkpoint file. Default 100.
+     * @see #train(Matrix2, Matrix2, boolean, Path)
+     */
+    public void setCheckpointInterval(int checkpointInterval) {
+        if(checkpointInterval < 1)
+            throw new IllegalArgumentException("Invalid checkpoint interval: " + checkpointInterval);
+        this.checkpointInterval = checkpointInterval;
+    }
+
+    public int getCheckpointInterval() {
+        return checkpointInterval;
     }
 
     /**
-     * Tran the given samples
+     * Set the optimizer used to update the parameters with the gradients of each mini-batch. Default SgdOptimizer.
+     * Its state (like the moments of AdamOptimizer) is allocated here once per layer and reset when training starts
+     * from new parameters, it's kept by warm starts and partialFit. Model files and checkpoints store it with the
+     * number of updates, so resuming from a checkpoint continues like an uninterrupted run. A checkpoint can only be
+     * resumed with an optimizer of the same class and settings.
+     */
+    public void setOptimizer(Optimizer optimizer) {
+        if(optimizer == null)
+            throw new IllegalArgumentException("Invalid optimizer: null");
+        this.optimizer = optimizer;
+        this.optimizerStep.set(0);
+        for (Layer layer : layers) {
+            layer.allocateOptimizer(optimizer.stateSize());
+        }
+    }
+
+    public Optimizer getOptimizer() {
+        return optimizer;
+    }
+
+    /**
+     * Set whether train continues from the current parameters instead of initializing new random ones. Default false,
+     * true for networks created with load(Path). Use it to retrain an existing model on new data.
+     * @see #partialFit(Matrix2, Matrix2, int)
+     */
+    public void setWarmStart(boolean warmStart) {
+        this.warmStart = warmStart;
+    }
+
+    public boolean isWarmStart() {
+        return warmStart;
+    }
+
+    /**
+     * Number of epochs of the last training plus those of later partialFit calls, or of the training saved in the
+     * file this network was loaded from
+     */
+    public int getTrainedEpochs() {
+        return trainedEpochs;
+    }
+
+    /**
+     * Number of layers with parameters (hidden and output layers)
+     */
+    public int getLayerCount() {
+        return layers.length;
+    }
+
+    /**
+     * Layer with the given index, from 0 (first hidden layer) to getLayerCount() - 1 (output layer)
+     */
+    public Layer getLayer(int index) {
+        if(index < 0 || index >= layers.length)
+            throw new IllegalArgumentException("Invalid layer index: " + index);
+        return layers[index];
+    }
+
+    /**
+     * Tran the given samples, starting from new random parameters unless warm start is set
      * @param X features
      * @param Y labels
      * @param printCost true if you want to print the current cost in each iteration
      */
     public void train(Matrix2 X, Matrix2 Y, boolean printCost) {
-        //Initialize parameters
-        long currentSeed = randSeed;
-        this.parameters = initializeParameters(this.layerDims, currentSeed);
-        
-        //Gradient descent loop
-        List<CacheItem> caches = new ArrayList<>(this.layerDims.length - 1);
-        Map<String, Matrix2> grads = new HashMap<>(this.layerDims.length - 1);
-        List<MiniBatch> miniBatches = new ArrayList<>(X.cols() / this.miniBatchSize + 1);
-        for (int i = 0; i < iterations; i++) {
-            grads.clear();
-            miniBatches.clear();
-            
-            //Create mini-batches
-            currentSeed += 1;
-            randomMiniBatches(X, Y, this.miniBatchSize, currentSeed, miniBatches);
-            
-            //Loop through all mini-batches
-            float cost = Float.MAX_VALUE;
-            for (MiniBatch miniBatch : miniBatches) {
-                caches.clear();
-                
-                //Forward propagation
-                Matrix2 AL = modelForward(miniBatch.X, this.parameters, caches, this.hiddenActivationFunc, this.outputActivationFunc);
+        ComputePool previousPool = ComputePool.bind(this.computePool);
+        try {
+            gradientDescent(X, Y, printCost, startTraining(null), iterations, null);
+        } finally {
+            ComputePool.bind(previousPool);
+        }
+    }
 
-                //Compute cost
-                cost = computeCost(AL, miniBatch.Y, this.lambda, this.parameters, this.lossFunction);
+    /**
+     * Train the given samples with checkpoints, resuming from the last one if the checkpoint file exists.
+     * Every checkpoint interval epochs, and after the last one, the parameters are copied and written in the
+     * background into the checkpoint file, replacing the previous one, so training doesn't wait for the disk.
+     * A checkpoint is skipped if the previous one is still being written.
+     * When resuming, the parameters, optimizer state and number of trained epochs of the checkpoint are loaded and
+     * training continues with the next epoch. Mini-batches of each epoch only depend on the random seed and the
+     * epoch, so the result is the same as training without interruption.
+     * @param X features
+     * @param Y labels
+     * @param printCost true if you want to print the current cost in each iteration
+     * @param checkpoint checkpoint file, a model file that can be loaded with load(Path)
+     * @throws IOException if the checkpoint can't be read or written
+     */
+    public void train(Matrix2 X, Matrix2 Y, boolean printCost, Path checkpoint) throws IOException {
+        ComputePool previousPool = ComputePool.bind(this.computePool);
+        try (Checkpointer checkpointer = newCheckpointer(checkpoint)) {
+            gradientDescent(X, Y, printCost, resumeTraining(checkpoint), iterations, checkpointer);
+        } finally {
+            ComputePool.bind(previousPool);
+        }
+    }
 
-                //Backward propagation
-                grads = modelBackward(AL, miniBatch.Y, caches, grads, this.lambda, this.lossFunction, this.hiddenActivationFunc, this.outputActivationFunc);
+    /**
+     * Train samples stored off-heap. Each mini-batch is copied to the heap right before its step.
+     * @param X features
+     * @param Y labels
+     * @param printCost true if you want to print the current cost in each iteration
+     */
+    public void train(OffHeapMatrix X, OffHeapMatrix Y, boolean printCost) {
+        ComputePool previousPool = ComputePool.bind(this.computePool);
+        try {
+            gradientDescent(X, Y, printCost, startTraining(null), iterations, null);
+        } finally {
+            ComputePool.bind(previousPool);
+        }
+    }
 
-                //Update parameters
-                updateParameters(this.parameters, grads, this.learningRate);
-            }
-            
-            //Print cost
-            if(printCost) {
-                if(i % 100 == 0) {
-                    System.out.println("Cost after iteration " + i + ": " + cost);
-                }
-            } 
-                      
+    /**
+     * Train samples stored off-heap with checkpoints, see train(Matrix2, Matrix2, boolean, Path)
+     */
+    public void train(OffHeapMatrix X, OffHeapMatrix Y, boolean printCost, Path checkpoint) throws IOException {
+        ComputePool previousPool = ComputePool.bind(this.computePool);
+        try (Checkpointer checkpointer = newCheckpointer(checkpoint)) {
+            gradientDescent(X, Y, printCost, resumeTraining(checkpoint), iterations, checkpointer);
+        } finally {
+            ComputePool.bind(previousPool);
         }
     }
-    
+
+    /**
+     * Continue training from the current parameters with a few epochs over the given samples, for incremental
+     * training on new data. Parameters are never initialized, the mini-batches of each call are shuffled as the
+     * next epochs after getTrainedEpochs().
+     * @param X features
+     * @param Y labels
+     * @param epochs number of passes over the samples
+     * @return cost of the last mini-batch (average of the last epoch in ASYNCHRONOUS mode)
+     */
+    public float partialFit(Matrix2 X, Matrix2 Y, int epochs) {
+        if(epochs < 1)
+            throw new IllegalArgumentException("Invalid epochs: " + epochs);
+        ComputePool previousPool = ComputePool.bind(this.computePool);
+        try {
+            return gradientDescent(X, Y, false, trainedEpochs, trainedEpochs + epochs, null);
+        } finally {
+            ComputePool.bind(previousPool);
+        }
+    }
+
+    /**
+     * Continue training from the current parameters with a single epoch over the given samples
+     * @see #partialFit(Matrix2, Matrix2, int)
+     */
+    public float partialFit(Matrix2 X, Matrix2 Y) {
+        return partialFit(X, Y, 1);
+    }
+
     /**
      * Predict Y for the given X using the trained model
      */
     public Matrix2 predict(Matrix2 X) {
-        List<CacheItem> caches = new ArrayList<>();
-        
-        Matrix2 AL = modelForward(X, parameters, caches, this.hiddenActivationFunc, this.outputActivationFunc);
+        return predict(X, new Matrix2(layers[layers.length - 1].getUnits(), X.cols()));
+    }
 
-        Matrix2 prediction;
-        if(AL.rows() == 1) {
-            //AL > 0.5
-            prediction = AL.greater(0.5f);
-        } else {
-            //Convert each column of AL to a one-hot vec picking the max value
-            Matrix2 max = AL.maxPerColumn().broadcastRow(AL.rows());
-            prediction = Matrix2.eqEW(AL, max);
+    /**
+     * Predict Y for the given X into dst (outputs x samples), see predict(Matrix2).
+     * X is processed in chunks of columns, so the memory used doesn't depend on the number of samples.
+     */
+    public Matrix2 predict(Matrix2 X, Matrix2 dst) {
+        ComputePool previousPool = ComputePool.bind(this.computePool);
+        try {
+            int chunkSize = Math.min(InferenceEngine.DEFAULT_CHUNK_SIZE, X.cols());
+            return new InferenceEngine(layers, chunkSize).predict(X, dst);
+        } finally {
+            ComputePool.bind(previousPool);
         }
+    }
 
-        return prediction;
+    /**
+     * Immutable copy of the current parameters for prediction only, safe to share between threads.
+     * Training this network afterwards doesn't change the returned model.
+     */
+    public FrozenModel freeze() {
+        Layer[] frozen = new Layer[layers.length];
+        for (int l = 0; l < layers.length; l++) {
+            frozen[l] = layers[l].freeze();
+        }
+        return new FrozenModel(frozen, InferenceEngine.DEFAULT_CHUNK_SIZE, FrozenModel.defaultSlots());
+    }
+
+    /**
+     * Save the network into a binary model file, see load(Path).
+     * Only networks with the activation and loss functions of this class can be saved.
+     */
+    public void save(Path path) throws IOException {
+        ModelFile.write(path, layers, lossFunction, randSeed, miniBatchSize, iterations, learningRate, lambda, trainedEpochs,
+                optimizer, optimizerStep.get());
+    }
+
+    /**
+     * Load a network saved with save(Path), with its parameters, training settings and optimizer.
+     * The file is memory-mapped and each parameter block is copied with a single bulk copy.
+     * Use FrozenModel.load(Path) when the network is only used for prediction.
+     */
+    public static DeepNeuralNetwork load(Path path) throws IOException {
+        return new DeepNeuralNetwork(ModelFile.open(path));
+    }
+
+    /**
+     * Predict the class of each sample of X: output > 0.5 for a single output or the index of the biggest output
+     * otherwise. No one-hot matrix is built.
+     */
+    public int[] predictClasses(Matrix2 X) {
+        return predictClasses(X, new int[X.cols()]);
+    }
+
+    /**
+     * Predict the class of each sample of X into dst[0:X.cols()], see predictClasses(Matrix2)
+     */
+    public int[] predictClasses(Matrix2 X, int[] dst) {
+        ComputePool previousPool = ComputePool.bind(this.computePool);
+        try {
+            int chunkSize = Math.min(InferenceEngine.DEFAULT_CHUNK_SIZE, X.cols());
+            return new InferenceEngine(layers, chunkSize).classes(X, dst);
+        } finally {
+            ComputePool.bind(previousPool);
+        }
+    }
+
+    /**
+     * Predict the k classes with the biggest outputs for each sample of X, with their outputs as scores
+     */
+    public TopK predictTopK(Matrix2 X, int k) {
+        int outputs = layers[layers.length - 1].getUnits();
+        if(k < 1 || k > outputs)
+            throw new IllegalArgumentException("Invalid k: " + k + " for " + outputs + " outputs");
+        int[] indices = new int[X.cols() * k];
+        float[] scores = new float[X.cols() * k];
+        ComputePool previousPool = ComputePool.bind(this.computePool);
+        try {
+            int chunkSize = Math.min(InferenceEngine.DEFAULT_CHUNK_SIZE, X.cols());
+            new InferenceEngine(layers, chunkSize).topK(X, k, indices, scores);
+        } finally {
+            ComputePool.bind(previousPool);
+        }
+        return new TopK(k, indices, scores);
+    }
+
+    /**
+     * Gradient descent with mini-batches over the given samples
+     */
+    private float gradientDescent(Matrix2 X, Matrix2 Y, boolean printCost, int firstEpoch, int lastEpoch,
+                                  Checkpointer checkpointer) {
+        return gradientDescent((indices, start, end, dst) -> Matrix2.getColumns(X, indices, start, end, dst), X.rows(),
+                (indices, start, end, dst) -> Matrix2.getColumns(Y, indices, start, end, dst), Y.rows(),
+                Y.cols(), printCost, firstEpoch, lastEpoch, checkpointer);
     }
     
-    
-    
-    
+    /**
+     * Gradient descent with mini-batches gathered from off-heap samples
+     */
+    private float gradientDescent(OffHeapMatrix X, OffHeapMatrix Y, boolean printCost, int firstEpoch, int lastEpoch,
+                                  Checkpointer checkpointer) {
+        return gradientDescent(X::getColumns, X.rows(), Y::getColumns, Y.rows(), Y.cols(), printCost, firstEpoch, lastEpoch,
+                checkpointer);
+    }
     
     /**
-     * Init W and b parameters for all layers
+     * Gradient descent with mini-batches of m samples, shuffled and gathered into reused buffers by a background
+     * loader while the previous ones are trained.
+     * Runs epochs [firstEpoch, lastEpoch) from the current parameters and returns the cost of the last epoch.
+     * Checkpoints are saved if checkpointer is not null.
+     */
+    private float gradientDescent(MiniBatchLoader.Gather X, int xRows, MiniBatchLoader.Gather Y, int yRows, int m,
+                                  boolean printCost, int firstEpoch, int lastEpoch, Checkpointer checkpointer) {
+        //Initialize step buffers
+        initializeTraining(m);
+        this.trainedEpochs = firstEpoch;
+        float cost = Float.MAX_VALUE;
+        
+        //Gradient descent loop, the loader keeps one mini-batch per training thread in use and two more being prepared
+        int batchSize = Math.min(this.miniBatchSize, m);
+        int ringSize = (isAsynchronous() ? replicas.length : 1) + 2;
+        try (MatrixArena arena = new MatrixArena();
+             MiniBatchLoader loader = new MiniBatchLoader(X, xRows, Y, yRows, m, batchSize, firstEpoch,
+                     lastEpoch - firstEpoch, randSeed, ringSize)) {
+            loader.start();
+            int batches = loader.batchesPerEpoch();
+            for (int i = firstEpoch; i < lastEpoch; i++) {
+                //Loop through all mini-batches, the last one can be incomplete
+                if(isAsynchronous()) {
+                    cost = asynchronousEpoch(batches, (b, replica) -> {
+                        MiniBatchLoader.Batch miniBatch = loader.take();
+                        try {
+                            return asynchronousStep(replica, miniBatch.X, miniBatch.Y);
+                        } finally {
+                            loader.release(miniBatch);
+                        }
+                    });
+                } else {
+                    for (int b = 0; b < batches; b++) {
+                        MiniBatchLoader.Batch miniBatch = loader.take();
+                        cost = trainStep(miniBatch.X, miniBatch.Y, arena);
+                        loader.release(miniBatch);
+                    }
+                }
+                
+                printCost(printCost, i, cost);
+                this.trainedEpochs = i + 1;
+
+                //Periodic checkpoint, the last one waits for the previous one so it's never skipped
+                if(checkpointer != null && (trainedEpochs % checkpointInterval == 0 || trainedEpochs == lastEpoch)) {
+                    checkpointer.save(trainedEpochs, optimizerStep.get(), trainedEpochs == lastEpoch);
+                }
+            }
+        }
+        return cost;
+    }
+
+    /**
+     * Start training from the checkpoint file if it exists. It's read into the heap and released once its values
+     * are copied, the file is not kept open or mapped while checkpoints replace it.
+     */
+    private int resumeTraining(Path checkpoint) throws IOException {
+        return startTraining(Files.exists(checkpoint) ? ModelFile.read(checkpoint) : null);
+    }
+
+    /**
+     * Parameters to start training from and its first epoch: those of resume if not null, the current ones
+     * with warm start or new random ones otherwise. Optimizer state is also read from resume, kept with warm start
+     * and reset otherwise.
      */
-    private Map<String, Matrix2> initializeParameters(int[] layerDims, long randSeed) {
-        Map<String, Matrix2> parameters = new HashMap<>((layerDims.length - 1) * 2);
-        for (int l = 1; l < layerDims.length; l++) {
-            String layerIdx = String.valueOf(l);
-            int rows = layerDims[l];
-            int cols = layerDims[l - 1];
-            parameters.put("W" + layerIdx, Matrix2.random(rows, cols, randSeed).mul(0.01f));
-            parameters.put("b" + layerIdx, Matrix2.zeros(rows, 1));
+    private int startTraining(ModelFile resume) {
+        if(resume != null) {
+            this.optimizerStep.set(resume.readOptimizerState(optimizer, layers));
+            for (int l = 0; l < layers.length; l++) {
+                resume.readParameters(l, layers[l].getWeights(), layers[l].getBias());
+            }
+            return Math.min(resume.epochs, iterations);
+        }
+        if(!warmStart) {
+            resetOptimizer();
+            initializeParameters(this.randSeed);
         }
-        return parameters;
+        return 0;
+    }
+
+    private void resetOptimizer() {
+        this.optimizerStep.set(0);
+        for (Layer layer : layers) {
+            layer.resetOptimizer();
+        }
+    }
+
+    private Checkpointer newCheckpointer(Path checkpoint) {
+        return new Checkpointer(checkpoint, layers, lossFunction, randSeed, miniBatchSize, iterations, learningRate, lambda,
+                optimizer);
     }
     
     /**
-     * Forward propagation for all layers.
-     * Compute AL and store intermediate values in caches
+     * Init the step buffers of all layers for training over the given number of samples
      */
-    private Matrix2 modelForward(Matrix2 X, Map<String, Matrix2> parameters, List<CacheItem> caches,
-                                 ActivationFunction hiddenActivation, ActivationFunction outputActivation) {
-        Matrix2 A = X;
-        int L = parameters.size() / 2;
-        
-        //Linear-Activation pass for all layers except the last one
-        for (int l = 1; l < L; l++) {
-            Matrix2 Aprev = A;
-            String layerIdx = String.valueOf(l);
-            Matrix2 W = parameters.get("W" + layerIdx);
-            Matrix2 b = parameters.get("b" + layerIdx);
-            A = linearActivationForward(Aprev, W, b, hiddenActivation, caches);
+    void initializeTraining(int samples) {
+        int batchSize = Math.min(this.miniBatchSize, samples);
+        int lastSize = samples % batchSize;
+        this.replicas = null;
+        if(this.trainingThreads > 1 && this.trainingMode == TrainingMode.ASYNCHRONOUS) {
+            //One replica per thread, each one takes whole mini-batches
+            this.replicas = createReplicas(this.trainingThreads);
+            for (Replica replica : replicas) {
+                for (Layer layer : replica.layers) {
+                    layer.allocate(batchSize, lastSize);
+                }
+            }
+            return;
         }
         
-        //Linear-Activation for last layer
-        Matrix2 WL = parameters.get("W" + L);
-        Matrix2 bL = parameters.get("b" + L);
-        Matrix2 AL = linearActivationForward(A, WL, bL, outputActivation, caches);
+        int threads = Math.min(this.trainingThreads, batchSize);
+        if(threads == 1) {
+            for (Layer layer : layers) {
+                layer.allocate(batchSize, lastSize);
+            }
+            return;
+        }
         
-        return AL;
+        //One replica per thread, each one takes a shard of every mini-batch
+        int lastThreads = Math.min(threads, lastSize);
+        this.replicas = createReplicas(threads);
+        for (int k = 0; k < threads; k++) {
+            int shardSize = shardStart(k + 1, batchSize, threads) - shardStart(k, batchSize, threads);
+            int lastShardSize = k < lastThreads ? shardStart(k + 1, lastSize, lastThreads) - shardStart(k, lastSize, lastThreads) : 0;
+            for (Layer layer : replicas[k].layers) {
+                layer.allocate(shardSize, lastShardSize);
+            }
+        }
     }
     
     /**
-     * Activation and linear forward pass: A = g(Z)
+     * Replicas for parallel training, the first one uses the network layers and the others copies of them
+     * that share their parameters
      */
-    private Matrix2 linearActivationForward(Matrix2 A_prev, Matrix2 W, Matrix2 b, ActivationFunction activation, List<CacheItem> caches) {
-        Matrix2 Z = linearForward(A_prev, W, b);
-        LinearCache linearCache = new LinearCache(A_prev, W, b);
-        
-        Matrix2 A = activation.forward(Z);
-        ActivationCache activationCache = new ActivationCache(Z);
-        
-        caches.add(new CacheItem(linearCache, activationCache));
-        return A;
+    private Replica[] createReplicas(int count) {
+        Replica[] replicas = new Replica[count];
+        replicas[0] = new Replica(layers);
+        for (int k = 1; k < count; k++) {
+            Layer[] replicaLayers = new Layer[layers.length];
+            for (int l = 0; l < layers.length; l++) {
+                replicaLayers[l] = new Layer(layers[l]);
+            }
+            replicas[k] = new Replica(replicaLayers);
+        }
+        return replicas;
+    }
+    
+    private boolean isAsynchronous() {
+        return this.replicas != null && this.trainingMode == TrainingMode.ASYNCHRONOUS;
     }
     
     /**
-     * Linear forward pass: Z = W * A + b
+     * First column of shard k when n columns are split in count shards
      */
-    private Matrix2 linearForward(Matrix2 A, Matrix2 W, Matrix2 b) {
-        //Z = W * A + b;
-        Matrix2 WxA = W.mul(A);
-        Matrix2 Z = WxA.add(b.broadcastCol(WxA.cols()));
-        return Z;
+    private static int shardStart(int k, int n, int count) {
+        return (int)((long)k * n / count);
     }
     
     /**
-     * Compute loss
+     * One step of gradient descent over a mini-batch. Returns the cost of the mini-batch.
+     * All intermediate values are written into the layer buffers. The few temporary matrices left (if any,
+     * depending on the activation and loss functions) are taken from arena, which is reset at the beginning of each step.
      */
-    private float computeCost(Matrix2 AL, Matrix2 Y, float lambda, Map<String, Matrix2> parameters, LossFunction lossFunction) {
-        int m = Y.cols();
-        int L = parameters.size() / 2;
-
-        //Use loss function to compute cost
-        float crossEntropyCost = lossFunction.computeCost(Y, AL);
-        
-        //L2 regularization cost: lambda/2m * (sum(W1^2) + sum(W2^2) + ... + (WL^2))
-        float l2RegCost = 0;
-        for (int l = 1; l < L; l++) {
-            Matrix2 W = parameters.get("W" + l);
-            l2RegCost += W.square().sum();
+    float trainStep(Matrix2 X, Matrix2 Y, MatrixArena arena) {
+        if(replicas != null) {
+            return parallelTrainStep(X, Y);
         }
-        l2RegCost *= lambda / (2f * m);
-        
-        //Combined cost
-        float cost = crossEntropyCost + l2RegCost;
-        
-        return cost;
+        return trainStep(this.layers, X, Y, arena);
     }
     
     /**
-     * Backward propagation for all layers
+     * One step of gradient descent over a mini-batch with the given layers
      */
-    private Map<String, Matrix2> modelBackward(Matrix2 AL, Matrix2 Y, List<CacheItem> caches, Map<String, Matrix2> grads,
-                                               float lambda, LossFunction lossFunction, ActivationFunction hiddenActivation,
-                                               ActivationFunction outputActivation) {
-        int L = caches.size();
-        CacheItem cache;
-        String layerIdx;
-        BackpropResult res;
+    private float trainStep(Layer[] layers, Matrix2 X, Matrix2 Y, MatrixArena arena) {
+        MatrixArena previousArena = MatrixArena.bind(arena);
+        try {
+            arena.reset();
+            for (Layer layer : layers) {
+                layer.select(X.cols());
+            }
+            
+            //Forward propagation
+            Matrix2 AL = modelForward(layers, X);
 
-        //Compute loss function gradient
-        Matrix2 dAL = lossFunction.computeCostGradient(Y, AL);
-
-        //Compute gradient for output layer
-        cache = caches.get(L - 1);
-        res = linearActivationBackward(dAL, cache, outputActivation, lambda);
-        layerIdx = String.valueOf(L);
-        grads.put("dA" + layerIdx, res.dA);
-        grads.put("dW" + layerIdx, res.dW);
-        grads.put("db" + layerIdx, res.db);
-        
-        //Compute gradients for all other layers
-        for (int l = L - 2; l >= 0; l--) {
-            layerIdx = String.valueOf(l + 1);
-            cache = caches.get(l);
-            Matrix2 dA_current = grads.get("dA" + (l + 2));
-            res = linearActivationBackward(dA_current, cache, hiddenActivation, lambda);
-            grads.put("dA" + layerIdx, res.dA);
-            grads.put("dW" + layerIdx, res.dW);
-            grads.put("db" + layerIdx, res.db);
+            //Compute cost
+            float cost = computeCost(layers, AL, Y, this.lambda, this.lossFunction);
+
+            //Backward propagation
+            modelBackward(layers, X, Y, this.lambda, this.lossFunction, X.cols());
+
+            //Update parameters
+            updateParameters(layers, this.learningRate);
+            
+            return cost;
+        } finally {
+            MatrixArena.bind(previousArena);
         }
+    }
+    
+    /**
+     * Asynchronous epoch: threads take the next mini-batch until all of them are done.
+     * Mini-batches finish in any order, so it returns the average cost of all the mini-batches of the epoch.
+     */
+    private float asynchronousEpoch(int batches, BatchTask task) {
+        AtomicInteger next = new AtomicInteger();
+        float[] costs = new float[replicas.length];
+        runParallel(ComputePool.current(), replicas.length, (start, end) -> {
+            for (int k = start; k < end; k++) {
+                for (int b = next.getAndIncrement(); b < batches; b = next.getAndIncrement()) {
+                    costs[k] += task.run(b, replicas[k]);
+                }
+            }
+        });
         
-        return grads;
+        //Each replica adds the costs of the mini-batches it took, they are combined in replica order
+        float cost = 0;
+        for (float replicaCost : costs) {
+            cost += replicaCost;
+        }
+        return cost / batches;
     }
-
+    
     /**
-     * Backward propagation for activation and linear
+     * Asynchronous step of a thread: gradients of the whole mini-batch and update of the shared parameters.
+     * Matrix operations of the step run serially, with temporary matrices taken from the replica arena.
      */
-    private BackpropResult linearActivationBackward(Matrix2 dA, CacheItem cache, ActivationFunction activation, float lambda) {
-        Matrix2 dZ = activation.backward(dA, cache.activationCache.Z);
-        return linearBackward(dZ, cache.linearCache, lambda); 
+    private float asynchronousStep(Replica replica, Matrix2 X, Matrix2 Y) {
+        ComputePool previousPool = ComputePool.bind(ComputePool.SERIAL);
+        try {
+            return trainStep(replica.layers, X, Y, replica.arena);
+        } finally {
+            ComputePool.bind(previousPool);
+        }
     }
-
+    
     /**
-     * Perform linear backward propagation
+     * Data-parallel step of gradient descent: the mini-batch is split in shards that compute their gradients in
+     * parallel, the gradients are added with a tree reduction and the shared parameters are updated once.
      */
-    private BackpropResult linearBackward(Matrix2 dZ, LinearCache cache, float lambda) {
-        int m = cache.Aprev.cols();
+    private float parallelTrainStep(Matrix2 X, Matrix2 Y) {
+        int m = X.cols();
+        int count = Math.min(replicas.length, m);
+        ComputePool pool = ComputePool.current();
         
-        //dW = 1/m * mul(dZ, Aprev.T) + lambda/m * W
-        Matrix2 dW = dZ.mul(cache.Aprev.transpose()).mul(1f/m).add(cache.W.mul(lambda / m));
+        //L2 regularization cost, before dW is overwritten by the gradients
+        float l2RegCost = l2RegCost(this.layers, this.lambda, m);
         
-        //db = 1/m * sumCols(dZ)
-        Matrix2 db = dZ.sumColumns().mul(1f/m);
+        //Forward and backward propagation of each shard, scaled by the whole mini-batch size.
+        //The L2 regularization term of the gradient is only added by the first shard.
+        runParallel(pool, count, (start, end) -> {
+            for (int k = start; k < end; k++) {
+                int colStart = shardStart(k, m, count);
+                int colEnd = shardStart(k + 1, m, count);
+                shardStep(replicas[k], X.columnsView(colStart, colEnd), Y.columnsView(colStart, colEnd), k == 0 ? this.lambda : 0, m);
+            }
+        });
         
-        //dAprev = mul(W.T, dZ)
-        Matrix2 dAprev = cache.W.transpose().mul(dZ);
+        //Tree reduction: on each level shard k adds the gradients of shard k + stride, until all are in the first one
+        for (int stride = 1; stride < count; stride *= 2) {
+            int s = stride;
+            runParallel(pool, (count - stride + 2 * stride - 1) / (2 * stride), (start, end) -> {
+                for (int pair = start; pair < end; pair++) {
+                    int k = pair * 2 * s;
+                    Layer[] dst = replicas[k].layers;
+                    Layer[] src = replicas[k + s].layers;
+                    for (int l = 0; l < dst.length; l++) {
+                        dst[l].addGradients(src[l]);
+                    }
+                }
+            });
+        }
         
-        return new BackpropResult(dAprev, dW, db);
+        //Update parameters, shared by all shards
+        updateParameters(this.layers, this.learningRate);
+        
+        float cost = l2RegCost;
+        for (int k = 0; k < count; k++) {
+            cost += replicas[k].cost;
+        }
+        return cost;
     }
-
+    
     /**
-     * Update parameters using gradient
+     * Forward and backward propagation of a shard of a mini-batch of m samples, in the current thread.
+     * Matrix operations of the shard run serially, with temporary matrices taken from the shard arena.
      */
-    private void updateParameters(Map<String, Matrix2> parameters, Map<String, Matrix2> grads, float learningRate) {
-        int L = parameters.size() / 2;
-        for (int l = 1; l <= L; l++) {
-            String layerIdx = String.valueOf(l);
-            Matrix2 W = parameters.get("W" + layerIdx);
-            Matrix2 b = parameters.get("b" + layerIdx);
-            Matrix2 dW = grads.get("dW" + layerIdx);
-            Matrix2 db = grads.get("db" + layerIdx);
+    private void shardStep(Replica shard, Matrix2 X, Matrix2 Y, float lambda, int m) {
+        ComputePool previousPool = ComputePool.bind(ComputePool.SERIAL);
+        MatrixArena previousArena = MatrixArena.bind(shard.arena);
+        try {
+            shard.arena.reset();
+            for (Layer layer : shard.layers) {
+                layer.select(X.cols());
+            }
             
-            //W = W - learningRate * dW
-            W = W.sub(dW.mul(learningRate));
-            b = b.sub(db.mul(learningRate));
+            //Forward propagation and loss of the shard, weighted by its part of the mini-batch
+            Matrix2 AL = modelForward(shard.layers, X);
+            Matrix2 scratch = shard.layers[shard.layers.length - 1].linearGradient();
+            shard.cost = this.lossFunction.computeCost(Y, AL, scratch) * X.cols() / m;
             
-            parameters.put("W" + layerIdx, W);
-            parameters.put("b" + layerIdx, b);
+            //Backward propagation
+            modelBackward(shard.layers, X, Y, lambda, this.lossFunction, m);
+        } finally {
+            MatrixArena.bind(previousArena);
+            ComputePool.bind(previousPool);
         }
     }
-
+    
     /**
-     * Split input into random mini-batches. The miniBatches is populated.
+     * Run task over [0, n) replicas, split across the threads of pool if it has more than one
      */
-    public void randomMiniBatches(Matrix2 X, Matrix2 Y, int miniBatchSize, long randSeed, List<MiniBatch> miniBatches) {
-        //Shuffle sample indices
-        int m = Y.cols();
-        int[] indices = MLUtils.shuffleArray(m, randSeed);
-        
-        //Assembly complete mini-batches
-        int completeBatches = m / miniBatchSize;
-        int[] batchIndices = new int[miniBatchSize];
-        for (int i = 0; i < completeBatches; i++) {
-            System.arraycopy(indices, i * miniBatchSize, batchIndices, 0, batchIndices.length);
-            Matrix2 batchX = Matrix2.getColumns(X, batchIndices);
-            Matrix2 batchY = Matrix2.getColumns(Y, batchIndices);
-            miniBatches.add(new MiniBatch(batchX, batchY));
+    private static void runParallel(ComputePool pool, int n, ComputePool.RangeTask task) {
+        if(n > 1 && pool.parallelism() > 1) {
+            pool.forEachRange(n, 1, task);
+        } else {
+            task.run(0, n);
         }
-        
-        //Assembly last incomplete batch
-        int pendingSize = m % miniBatchSize;
-        if(pendingSize != 0) {
-            batchIndices = new int[pendingSize];
-            System.arraycopy(indices, completeBatches * miniBatchSize, batchIndices, 0, batchIndices.length);
-            Matrix2 batchX = Matrix2.getColumns(X, batchIndices);
-            Matrix2 batchY = Matrix2.getColumns(Y, batchIndices);
-            miniBatches.add(new MiniBatch(batchX, batchY));
+    }
+    
+    private void printCost(boolean printCost, int iteration, float cost) {
+        if(printCost) {
+            if(iteration % 100 == 0) {
+                System.out.println("Cost after iteration " + iteration + ": " + cost);
+            }
         }
     }
     
-    private static class CacheItem {
-        public final LinearCache linearCache;
-        public final ActivationCache activationCache;
-        public CacheItem(LinearCache linearCache, ActivationCache activationCache) {
-            this.linearCache = linearCache;
-            this.activationCache = activationCache;
+    /**
+     * Create hidden and output layers from the dimensions of all layers (including input)
+     */
+    private static Layer[] createLayers(int[] layerDims, ActivationFunction hiddenActivation, ActivationFunction outputActivation) {
+        if(layerDims.length < 2)
+            throw new IllegalArgumentException("Invalid layer dimensions, at least input and output layers are needed");
+        int L = layerDims.length - 1;
+        Layer[] layers = new Layer[L];
+        for (int l = 0; l < L; l++) {
+            ActivationFunction activation = l < L - 1 ? hiddenActivation : outputActivation;
+            layers[l] = new Layer(layerDims[l], layerDims[l + 1], activation);
         }
+        return layers;
     }
     
-    private static class LinearCache {
-        public final Matrix2 Aprev;
-        public final Matrix2 W;
-        public final Matrix2 b;
-        public LinearCache(Matrix2 Aprev, Matrix2 W, Matrix2 b) {
-            this.Aprev = Aprev;
-            this.W = W;
-            this.b = b;
+    /**
+     * Init W and b parameters for all layers
+     */
+    private void initializeParameters(long randSeed) {
+        for (Layer layer : layers) {
+            layer.initialize(randSeed);
         }
     }
     
-    private static class ActivationCache {
-        public final Matrix2 Z;
-        public ActivationCache(Matrix2 Z) {
-            this.Z = Z;
+    /**
+     * Forward propagation for all layers.
+     * Compute AL, Z and A of each layer are stored in the layer buffers
+     */
+    private Matrix2 modelForward(Layer[] layers, Matrix2 X) {
+        Matrix2 A = X;
+        for (Layer layer : layers) {
+            A = layer.forward(A);
         }
+        return A;
     }
     
-    private static class BackpropResult {
-        public final Matrix2 dA;
-        public final Matrix2 dW;
-        public final Matrix2 db;
-        public BackpropResult(Matrix2 dA, Matrix2 dW, Matrix2 db) {
-            this.dA = dA;
-            this.dW = dW;
-            this.db = db;
-        }  
+    /**
+     * Compute loss
+     */
+    private float computeCost(Layer[] layers, Matrix2 AL, Matrix2 Y, float lambda, LossFunction lossFunction) {
+        int m = Y.cols();
+        int L = layers.length;
+
+        //Use loss function to compute cost, dZ of the output layer is not used yet so it is the scratch buffer
+        float crossEntropyCost = lossFunction.computeCost(Y, AL, layers[L - 1].linearGradient());
+        
+        //Combined cost
+        float cost = crossEntropyCost + l2RegCost(layers, lambda, m);
+        
+        return cost;
     }
     
-    private static class MiniBatch {
-        public final Matrix2 X;
-        public final Matrix2 Y;
-        public MiniBatch(Matrix2 X, Matrix2 Y) {
-            this.X = X;
-            this.Y = Y;
+    /**
+     * L2 regularization cost: lambda/2m * (sum(W1^2) + sum(W2^2) + ... + (WL^2))
+     */
+    private float l2RegCost(Layer[] layers, float lambda, int m) {
+        float l2RegCost = 0;
+        for (int l = 0; l < layers.length - 1; l++) {
+            l2RegCost += layers[l].weightsSquareSum();
         }
-        
+        return l2RegCost * (lambda / (2f * m));
+    }
+    
+    /**
+     * Backward propagation for all layers, gradients are stored in the layers.
+     * m is the number of samples of the mini-batch, X and Y can be only part of it.
+     */
+    private void modelBackward(Layer[] layers, Matrix2 X, Matrix2 Y, float lambda, LossFunction lossFunction, int m) {
+        int L = layers.length;
+
+        //Compute loss function gradient
+        Layer outputLayer = layers[L - 1];
+        lossFunction.computeCostGradient(Y, outputLayer.output(), outputLayer.outputGradient());
+
+        //Compute gradients for all layers, from the output one. dA is not needed for the input.
+        for (int l = L - 1; l >= 0; l--) {
+            Matrix2 Aprev = l > 0 ? layers[l - 1].output() : X;
+            Matrix2 dAprev = l > 0 ? layers[l - 1].outputGradient() : null;
+            layers[l].backward(Aprev, dAprev, lambda, m);
+        }
+    }
+
+    /**
+     * Update parameters in place using gradient, with the next optimizer step
+     */
+    private void updateParameters(Layer[] layers, float learningRate) {
+        int step = optimizerStep.incrementAndGet();
+        for (Layer layer : layers) {
+            layer.update(optimizer, learningRate, step);
+        }
+    }
+
+    /**
+     * Layers and buffers of one thread in parallel training
+     */
+    private static class Replica {
+        public final Layer[] layers;
+        public final MatrixArena arena = new MatrixArena();
+        public float cost;
+        public Replica(Layer[] layers) {
+            this.layers = layers;
+        }
+    }
+    
+    /**
+     * Step over mini-batch b of an epoch, run by a replica
+     */
+    private interface BatchTask {
+        float run(int b, Replica replica);
     }
 
 
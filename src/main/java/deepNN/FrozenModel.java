@@ -0,0 +1,197 @@
+package deepNN;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Immutable snapshot of a trained DeepNeuralNetwork for prediction only, created with DeepNeuralNetwork.freeze().
+ * Parameters are copied when freezing and never change, so a model can be shared by any number of threads
+ * (including virtual threads) calling predict concurrently, while the network keeps training.
+ *
+ * Each call borrows the scratch buffers of an InferenceEngine from a lock-free set of slots and gives them back
+ * at the end, so once warmed up calls don't allocate besides their result (none with the dst variants).
+ * A new engine is created only if all of them are in use, with buffers sized for the call and not for a whole
+ * chunk, and it's kept when given back: the slots grow (without locks) up to the number of concurrent calls.
+ * Predictions run in the calling thread.
+ */
+public final class FrozenModel {
+
+    /** Max number of idle engines kept for reuse */
+    static final int MAX_SLOTS = 1 << 12;
+
+    private final Layer[] layers;
+    private final int chunkSize;
+    private final AtomicReference<AtomicReferenceArray<InferenceEngine>> engines;
+
+    /**
+     * Creates a model
+     * @param layers frozen layers, not shared with a network being trained
+     * @param chunkSize max number of columns processed at once by each call
+     * @param slots initial number of slots for idle engines, they grow when needed up to MAX_SLOTS
+     */
+    FrozenModel(Layer[] layers, int chunkSize, int slots) {
+        if(chunkSize < 1 || slots < 1 || slots > MAX_SLOTS)
+            throw new IllegalArgumentException("Invalid chunk size " + chunkSize + " or slots " + slots);
+        this.layers = layers;
+        this.chunkSize = chunkSize;
+        this.engines = new AtomicReference<>(new AtomicReferenceArray<>(slots));
+    }
+
+    /**
+     * Load a model file saved with DeepNeuralNetwork.save(Path) for prediction only.
+     * The file is memory-mapped and only its header is read, parameter blocks are copied with a bulk copy each
+     * and no layer is randomly initialized or allocated for training.
+     */
+    public static FrozenModel load(Path path) throws IOException {
+        Layer[] layers = ModelFile.open(path).readLayers();
+        return new FrozenModel(layers, InferenceEngine.DEFAULT_CHUNK_SIZE, defaultSlots());
+    }
+
+    /**
+     * Default initial number of slots: two per core
+     */
+    static int defaultSlots() {
+        return Math.max(2, 2 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Number of features of each sample
+     */
+    public int getInputs() {
+        return layers[0].getInputs();
+    }
+
+    /**
+     * Number of units of the output layer
+     */
+    public int getOutputs() {
+        return layers[layers.length - 1].getUnits();
+    }
+
+    /**
+     * Predict Y for the given X, see DeepNeuralNetwork.predict(Matrix2)
+     */
+    public Matrix2 predict(Matrix2 X) {
+        return predict(X, new Matrix2(getOutputs(), X.cols()));
+    }
+
+    /**
+     * Predict Y for the given X into dst (outputs x samples)
+     */
+    public Matrix2 predict(Matrix2 X, Matrix2 dst) {
+        ComputePool previousPool = ComputePool.bind(ComputePool.SERIAL);
+        InferenceEngine engine = acquire();
+        try {
+            return engine.predict(X, dst);
+        } finally {
+            release(engine);
+            ComputePool.bind(previousPool);
+        }
+    }
+
+    /**
+     * Output of the last layer for the given X into dst (outputs x samples)
+     */
+    public Matrix2 forward(Matrix2 X, Matrix2 dst) {
+        ComputePool previousPool = ComputePool.bind(ComputePool.SERIAL);
+        InferenceEngine engine = acquire();
+        try {
+            return engine.forward(X, dst);
+        } finally {
+            release(engine);
+            ComputePool.bind(previousPool);
+        }
+    }
+
+    /**
+     * Predict the class of each sample of X, see DeepNeuralNetwork.predictClasses(Matrix2)
+     */
+    public int[] predictClasses(Matrix2 X) {
+        return predictClasses(X, new int[X.cols()]);
+    }
+
+    /**
+     * Predict the class of each sample of X into dst[0:X.cols()]
+     */
+    public int[] predictClasses(Matrix2 X, int[] dst) {
+        ComputePool previousPool = ComputePool.bind(ComputePool.SERIAL);
+        InferenceEngine engine = acquire();
+        try {
+            return engine.classes(X, dst);
+        } finally {
+            release(engine);
+            ComputePool.bind(previousPool);
+        }
+    }
+
+    /**
+     * Predict the k classes with the biggest outputs for each sample of X, see DeepNeuralNetwork.predictTopK
+     */
+    public TopK predictTopK(Matrix2 X, int k) {
+        if(k < 1 || k > getOutputs())
+            throw new IllegalArgumentException("Invalid k: " + k + " for " + getOutputs() + " outputs");
+        int[] indices = new int[X.cols() * k];
+        float[] scores = new float[X.cols() * k];
+        ComputePool previousPool = ComputePool.bind(ComputePool.SERIAL);
+        InferenceEngine engine = acquire();
+        try {
+            engine.topK(X, k, indices, scores);
+        } finally {
+            release(engine);
+            ComputePool.bind(previousPool);
+        }
+        return new TopK(k, indices, scores);
+    }
+
+    /**
+     * Take an idle engine, or create one if all of them are in use.
+     * Search starts at a slot picked by thread, so concurrent threads usually don't compete for the same one.
+     */
+    InferenceEngine acquire() {
+        AtomicReferenceArray<InferenceEngine> slots = engines.get();
+        int n = slots.length();
+        int first = (int) (Thread.currentThread().getId() % n);
+        for (int i = 0; i < n; i++) {
+            int slot = (first + i) % n;
+            InferenceEngine engine = slots.get(slot);
+            if(engine != null && slots.compareAndSet(slot, engine, null))
+                return engine;
+        }
+        return new InferenceEngine(layers, chunkSize);
+    }
+
+    /**
+     * Give back an engine to an empty slot. If there is none the slots are replaced by twice as many, starting
+     * with this engine, and the idle engines of the old ones are moved by taking them one by one like acquire does,
+     * so an engine is never in two slots. Engines given back to the old slots after that are dropped, as are those
+     * given back once MAX_SLOTS are full.
+     */
+    void release(InferenceEngine engine) {
+        while (true) {
+            AtomicReferenceArray<InferenceEngine> slots = engines.get();
+            int n = slots.length();
+            int first = (int) (Thread.currentThread().getId() % n);
+            for (int i = 0; i < n; i++) {
+                int slot = (first + i) % n;
+                if(slots.get(slot) == null && slots.compareAndSet(slot, null, engine))
+                    return;
+            }
+            if(n >= MAX_SLOTS)
+                return;
+            AtomicReferenceArray<InferenceEngine> grown = new AtomicReferenceArray<>(Math.min(2 * n, MAX_SLOTS));
+            grown.set(0, engine);
+            if(engines.compareAndSet(slots, grown)) {
+                for (int slot = 0; slot < n; slot++) {
+                    InferenceEngine idle = slots.get(slot);
+                    if(idle != null && slots.compareAndSet(slot, idle, null)) {
+                        release(idle);
+                    }
+                }
+                return;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,300 @@
+package deepNN;
+
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Cache-blocked matrix multiplication engine (GEMM) used by Matrix2.
+ * Computes C = op(C + alpha * A * B) over flat float arrays, where op is an optional element-wise epilogue. Each operand is described by its backing array,
+ * an offset and a row/column stride, so row-major, column-major and transposed sources are read without creating copies.
+ *
+ * The shared dimension is split in KC blocks, B in KC x NC panels (L2) and A in MC x KC blocks (L1/L2).
+ * Both are packed into contiguous per-thread buffers and multiplied with an i-k-j order, using
+ * 4 values of A per pass so each row of C is loaded and stored once every 4 steps of k.
+ * Alpha is applied while packing A and the epilogue runs on each panel of C right after its last
+ * k block, while it is still warm in cache.
+ * Big products are split in tiles of C that are computed in parallel by a ComputePool.
+ */
+final class Gemm {
+
+    /** Rows of A packed per block */
+    static final int MC = 64;
+    /** Size of the shared dimension packed per block */
+    static final int KC = 256;
+    /** Columns of B packed per panel */
+    static final int NC = 1024;
+    /** Problems with less multiply-adds than this skip packing */
+    static final int SMALL_FLOPS = 32 * 32 * 32;
+    /** Tiles of C are never split below this size */
+    static final int MIN_TILE = 16;
+
+    private static final ThreadLocal<PackBuffers> PACK_BUFFERS = new ThreadLocal<PackBuffers>() {
+        @Override
+        protected PackBuffers initialValue() {
+            return new PackBuffers();
+        }
+    };
+
+    private Gemm() {}
+
+    /**
+     * C = op(C + alpha * A * B)
+     * @param pool pool used to compute tiles of C in parallel
+     * @param m rows of A and C
+     * @param n columns of B and C
+     * @param k columns of A and rows of B
+     * @param a data of A, element (i, p) is at aOff + i * aRs + p * aCs
+     * @param b data of B, element (p, j) is at bOff + p * bRs + j * bCs
+     * @param c data of C, row-major with ldc elements between rows
+     * @param op element-wise operation applied to the result, null for none
+     */
+    static void multiply(ComputePool pool, int m, int n, int k, float alpha,
+                         float[] a, int aOff, int aRs, int aCs,
+                         float[] b, int bOff, int bRs, int bCs,
+                         float[] c, int cOff, int ldc, Matrix2.ElementWiseOp op) {
+        long flops = (long)m * n * k;
+        if(flops <= SMALL_FLOPS) {
+            multiplySmall(m, n, k, alpha, a, aOff, aRs, aCs, b, bOff, bRs, bCs, c, cOff, ldc);
+            epilogue(op, c, cOff, ldc, 0, m, 0, n);
+        } else if(pool.isParallel(flops)) {
+            pool.pool().invoke(new TileTask(pool.threshold(), 0, m, 0, n, k, alpha, a, aOff, aRs, aCs, b, bOff, bRs, bCs, c, cOff, ldc, op));
+        } else {
+            multiplyBlock(0, m, 0, n, k, alpha, a, aOff, aRs, aCs, b, bOff, bRs, bCs, c, cOff, ldc, op);
+        }
+    }
+
+    /**
+     * C[rowStart:rowEnd, colStart:colEnd] = op(C + alpha * A[rowStart:rowEnd, :] * B[:, colStart:colEnd])
+     */
+    static void multiplyBlock(int rowStart, int rowEnd, int colStart, int colEnd, int k, float alpha,
+                              float[] a, int aOff, int aRs, int aCs,
+                              float[] b, int bOff, int bRs, int bCs,
+                              float[] c, int cOff, int ldc, Matrix2.ElementWiseOp op) {
+        PackBuffers buffers = PACK_BUFFERS.get();
+        float[] aPack = buffers.a;
+        float[] bPack = buffers.b;
+
+        for (int jj = colStart; jj < colEnd; jj += NC) {
+            int nc = Math.min(NC, colEnd - jj);
+            for (int pp = 0; pp < k; pp += KC) {
+                int kc = Math.min(KC, k - pp);
+                packB(b, bOff + pp * bRs + jj * bCs, bRs, bCs, kc, nc, bPack);
+                for (int ii = rowStart; ii < rowEnd; ii += MC) {
+                    int mc = Math.min(MC, rowEnd - ii);
+                    packA(a, aOff + ii * aRs + pp * aCs, aRs, aCs, mc, kc, alpha, aPack);
+                    kernel(mc, nc, kc, aPack, bPack, c, cOff + ii * ldc + jj, ldc);
+                }
+            }
+            epilogue(op, c, cOff, ldc, rowStart, rowEnd, jj, jj + nc);
+        }
+    }
+
+    /**
+     * Apply op to C[rowStart:rowEnd, colStart:colEnd]
+     */
+    private static void epilogue(Matrix2.ElementWiseOp op, float[] c, int cOff, int ldc,
+                                 int rowStart, int rowEnd, int colStart, int colEnd) {
+        if(op == null) {
+            return;
+        }
+        for (int i = rowStart; i < rowEnd; i++) {
+            int cRow = cOff + i * ldc + colStart;
+            Kernels.apply(op, c, cRow, c, cRow, colEnd - colStart);
+        }
+    }
+
+    /**
+     * Pack a mc x kc block of alpha * A in row-major order
+     */
+    private static void packA(float[] a, int off, int rs, int cs, int mc, int kc, float alpha, float[] dst) {
+        int idx = 0;
+        if(alpha != 1) {
+            for (int i = 0; i < mc; i++) {
+                int src = off + i * rs;
+                for (int p = 0; p < kc; p++) {
+                    dst[idx++] = alpha * a[src];
+                    src += cs;
+                }
+            }
+        } else if(cs == 1) {
+            for (int i = 0; i < mc; i++) {
+                System.arraycopy(a, off + i * rs, dst, idx, kc);
+                idx += kc;
+            }
+        } else if(rs == 1) {
+            //Column-major A, read it in memory order
+            for (int p = 0; p < kc; p++) {
+                int src = off + p * cs;
+                for (int i = 0; i < mc; i++) {
+                    dst[i * kc + p] = a[src + i];
+                }
+            }
+        } else {
+            for (int i = 0; i < mc; i++) {
+                int src = off + i * rs;
+                for (int p = 0; p < kc; p++) {
+                    dst[idx++] = a[src];
+                    src += cs;
+                }
+            }
+        }
+    }
+
+    /**
+     * Pack a kc x nc panel of B in row-major order
+     */
+    private static void packB(float[] b, int off, int rs, int cs, int kc, int nc, float[] dst) {
+        int idx = 0;
+        if(cs == 1) {
+            for (int p = 0; p < kc; p++) {
+                System.arraycopy(b, off + p * rs, dst, idx, nc);
+                idx += nc;
+            }
+        } else if(rs == 1) {
+            //Column-major B, read it in memory order
+            for (int j = 0; j < nc; j++) {
+                int src = off + j * cs;
+                for (int p = 0; p < kc; p++) {
+                    dst[p * nc + j] = b[src + p];
+                }
+            }
+        } else {
+            for (int p = 0; p < kc; p++) {
+                int src = off + p * rs;
+                for (int j = 0; j < nc; j++) {
+                    dst[idx++] = b[src];
+                    src += cs;
+                }
+            }
+        }
+    }
+
+    /**
+     * Multiply packed blocks: C[mc, nc] += aPack[mc, kc] * bPack[kc, nc]
+     */
+    private static void kernel(int mc, int nc, int kc, float[] aPack, float[] bPack, float[] c, int cOff, int ldc) {
+        for (int i = 0; i < mc; i++) {
+            int cRow = cOff + i * ldc;
+            int aRow = i * kc;
+            int p = 0;
+
+            //4 steps of k per pass over the row of C
+            for (; p + 3 < kc; p += 4) {
+                float a0 = aPack[aRow + p];
+                float a1 = aPack[aRow + p + 1];
+                float a2 = aPack[aRow + p + 2];
+                float a3 = aPack[aRow + p + 3];
+                int b0 = p * nc;
+                int b1 = b0 + nc;
+                int b2 = b1 + nc;
+                int b3 = b2 + nc;
+                for (int j = 0; j < nc; j++) {
+                    c[cRow + j] += a0 * bPack[b0 + j] + a1 * bPack[b1 + j] + a2 * bPack[b2 + j] + a3 * bPack[b3 + j];
+                }
+            }
+
+            //Remaining steps of k
+            for (; p < kc; p++) {
+                float a0 = aPack[aRow + p];
+                int b0 = p * nc;
+                for (int j = 0; j < nc; j++) {
+                    c[cRow + j] += a0 * bPack[b0 + j];
+                }
+            }
+        }
+    }
+
+    /**
+     * Unpacked i-k-j loop for tiny problems, where packing costs more than it saves
+     */
+    private static void multiplySmall(int m, int n, int k, float alpha,
+                                      float[] a, int aOff, int aRs, int aCs,
+                                      float[] b, int bOff, int bRs, int bCs,
+                                      float[] c, int cOff, int ldc) {
+        for (int i = 0; i < m; i++) {
+            int cRow = cOff + i * ldc;
+            for (int p = 0; p < k; p++) {
+                float av = alpha * a[aOff + i * aRs + p * aCs];
+                int bRow = bOff + p * bRs;
+                for (int j = 0; j < n; j++) {
+                    c[cRow + j] += av * b[bRow + j * bCs];
+                }
+            }
+        }
+    }
+
+    /**
+     * Computes a tile of C, splitting the biggest side in two while the tile has more work than the threshold.
+     * Tiles never overlap so they can write C without synchronization.
+     */
+    private static class TileTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final long threshold;
+        private final int rowStart, rowEnd, colStart, colEnd, k;
+        private final float alpha;
+        private final float[] a, b, c;
+        private final int aOff, aRs, aCs, bOff, bRs, bCs, cOff, ldc;
+        private final Matrix2.ElementWiseOp op;
+
+        TileTask(long threshold, int rowStart, int rowEnd, int colStart, int colEnd, int k, float alpha,
+                 float[] a, int aOff, int aRs, int aCs,
+                 float[] b, int bOff, int bRs, int bCs,
+                 float[] c, int cOff, int ldc, Matrix2.ElementWiseOp op) {
+            this.threshold = threshold;
+            this.rowStart = rowStart;
+            this.rowEnd = rowEnd;
+            this.colStart = colStart;
+            this.colEnd = colEnd;
+            this.k = k;
+            this.alpha = alpha;
+            this.a = a;
+            this.aOff = aOff;
+            this.aRs = aRs;
+            this.aCs = aCs;
+            this.b = b;
+            this.bOff = bOff;
+            this.bRs = bRs;
+            this.bCs = bCs;
+            this.c = c;
+            this.cOff = cOff;
+            this.ldc = ldc;
+            this.op = op;
+        }
+
+        @Override
+        protected void compute() {
+            int rows = rowEnd - rowStart;
+            int cols = colEnd - colStart;
+            long flops = (long)rows * cols * k;
+            if(flops < 2 * threshold || Math.max(rows, cols) < 2 * MIN_TILE) {
+                multiplyBlock(rowStart, rowEnd, colStart, colEnd, k, alpha, a, aOff, aRs, aCs, b, bOff, bRs, bCs, c, cOff, ldc, op);
+                return;
+            }
+
+            //Split the biggest side, keeping tile borders aligned to MIN_TILE
+            TileTask first, second;
+            if(rows >= cols) {
+                int mid = rowStart + (rows / 2 / MIN_TILE) * MIN_TILE;
+                first = subTask(rowStart, mid, colStart, colEnd);
+                second = subTask(mid, rowEnd, colStart, colEnd);
+            } else {
+                int mid = colStart + (cols / 2 / MIN_TILE) * MIN_TILE;
+                first = subTask(rowStart, rowEnd, colStart, mid);
+                second = subTask(rowStart, rowEnd, mid, colEnd);
+            }
+            invokeAll(first, second);
+        }
+
+        private TileTask subTask(int rowStart, int rowEnd, int colStart, int colEnd) {
+            return new TileTask(threshold, rowStart, rowEnd, colStart, colEnd, k, alpha, a, aOff, aRs, aCs, b, bOff, bRs, bCs, c, cOff, ldc, op);
+        }
+    }
+
+    /**
+     * Per-thread packing buffers, allocated once
+     */
+    private static class PackBuffers {
+        final float[] a = new float[MC * KC];
+        final float[] b = new float[KC * NC];
+    }
+
+}
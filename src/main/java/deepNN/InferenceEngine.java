@@ -0,0 +1,226 @@
+package deepNN;
+
+/**
+ * Forward pass of a trained network for prediction only.
+ * Keeps no backprop values: the input is processed in chunks of columns and each layer reads the activations of
+ * the previous one from one of two ping-pong buffers, sized for the widest layer and one chunk, and writes into
+ * the other one. Memory doesn't depend on the number of samples and predictions go into a preallocated output.
+ * Buffers are sized for the widest call so far (up to a chunk), so an engine used for single samples stays small.
+ *
+ * An engine is not thread-safe, each thread needs its own.
+ */
+final class InferenceEngine {
+
+    /** Default number of columns per chunk */
+    static final int DEFAULT_CHUNK_SIZE = 1024;
+
+    private final Layer[] layers;
+    private final int chunkSize;
+    private final int width;
+    private int capacity;
+    private float[][] buffers;
+    private float[] maxBuffer;
+    private Matrix2[] outputs;
+    private Matrix2[] shortOutputs;
+
+    //Destinations of the current call, tasks are created once so calls don't allocate
+    private Matrix2 labels;
+    private int[] classes;
+    private int k;
+    private int[] indices;
+    private float[] scores;
+    private final ChunkTask labelsTask = this::labelsChunk;
+    private final ChunkTask classesTask = this::classesChunk;
+    private final ChunkTask topKTask = this::topKChunk;
+
+    /**
+     * Creates an engine
+     * @param layers layers of the network
+     * @param chunkSize max number of columns processed at once
+     */
+    InferenceEngine(Layer[] layers, int chunkSize) {
+        if(chunkSize < 1)
+            throw new IllegalArgumentException("Invalid chunk size: " + chunkSize);
+        this.layers = layers;
+        this.chunkSize = chunkSize;
+        int width = 0;
+        for (Layer layer : layers) {
+            width = Math.max(width, layer.getUnits());
+        }
+        this.width = width;
+    }
+
+    int chunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Output of the last layer (AL) for X, written into dst (outputs x X.cols())
+     */
+    Matrix2 forward(Matrix2 X, Matrix2 dst) {
+        run(X, dst, null);
+        return dst;
+    }
+
+    /**
+     * Labels for X written into dst (outputs x X.cols()): AL > 0.5 for a single output or a one-hot vector
+     * with the max of AL otherwise
+     */
+    Matrix2 predict(Matrix2 X, Matrix2 dst) {
+        Matrix2.checkDst(dst, layers[layers.length - 1].getUnits(), X.cols());
+        labels = dst;
+        try {
+            run(X, null, labelsTask);
+        } finally {
+            labels = null;
+        }
+        return dst;
+    }
+
+    /**
+     * Class of each sample of X written into dst[0:X.cols()]: AL > 0.5 for a single output or the row with
+     * the max of AL otherwise
+     */
+    int[] classes(Matrix2 X, int[] dst) {
+        if(dst.length < X.cols())
+            throw new IllegalArgumentException("Invalid destination length: " + dst.length + ", expected " + X.cols());
+        classes = dst;
+        try {
+            run(X, null, classesTask);
+        } finally {
+            classes = null;
+        }
+        return dst;
+    }
+
+    /**
+     * The k biggest outputs of each sample of X and their rows, in descending order. Those of sample i are written
+     * into indices and scores at [i * k, (i + 1) * k).
+     */
+    void topK(Matrix2 X, int k, int[] indices, float[] scores) {
+        if(indices.length < X.cols() * k || scores.length < X.cols() * k)
+            throw new IllegalArgumentException("Invalid destination length, expected " + X.cols() * k);
+        this.k = k;
+        this.indices = indices;
+        this.scores = scores;
+        try {
+            run(X, null, topKTask);
+        } finally {
+            this.indices = null;
+            this.scores = null;
+        }
+    }
+
+    /**
+     * Forward pass of X chunk by chunk. The output of the last layer is written into dst if not null, otherwise
+     * it's left in the buffers and given to task with the index of the first column of the chunk.
+     */
+    private void run(Matrix2 X, Matrix2 dst, ChunkTask task) {
+        Layer output = layers[layers.length - 1];
+        if(X.rows() != layers[0].getInputs())
+            throw new IllegalArgumentException("Invalid input rows: " + X.rows() + ", expected " + layers[0].getInputs());
+        if(dst != null) {
+            Matrix2.checkDst(dst, output.getUnits(), X.cols());
+        }
+
+        int n = X.cols();
+        reserve(Math.min(n, chunkSize));
+        for (int start = 0; start < n; start += chunkSize) {
+            int end = Math.min(start + chunkSize, n);
+            Matrix2[] chunkOutputs = outputs(end - start);
+            Matrix2 chunkX = start == 0 && end == n ? X : X.columnsView(start, end);
+
+            //All layers but the last one write into the ping-pong buffers
+            Matrix2 A = chunkX;
+            for (int l = 0; l < layers.length - 1; l++) {
+                A = layers[l].predict(A, chunkOutputs[l]);
+            }
+
+            if(dst != null) {
+                output.predict(A, start == 0 && end == n ? dst : dst.columnsView(start, end));
+            } else {
+                task.run(output.predict(A, chunkOutputs[layers.length - 1]), start);
+            }
+        }
+    }
+
+    /**
+     * Convert AL to labels: AL > 0.5 for a single output or each column to a one-hot vector picking the max value
+     */
+    private void labelsChunk(Matrix2 AL, int start) {
+        Matrix2 dst = start == 0 && AL.cols() == labels.cols() ? labels : labels.columnsView(start, start + AL.cols());
+        if(AL.rows() == 1) {
+            AL.greaterInto(0.5f, dst);
+        } else {
+            Matrix2[] chunkOutputs = outputs(AL.cols());
+            AL.maxPerColumnInto(chunkOutputs[layers.length]);
+            Matrix2.eqEW(AL, chunkOutputs[layers.length + 1], dst);
+        }
+    }
+
+    private void classesChunk(Matrix2 AL, int start) {
+        if(AL.rows() == 1) {
+            for (int col = 0; col < AL.cols(); col++) {
+                classes[start + col] = AL.get(0, col) > 0.5f ? 1 : 0;
+            }
+        } else {
+            Matrix2.argMaxPerColumn(AL, classes, start);
+        }
+    }
+
+    private void topKChunk(Matrix2 AL, int start) {
+        Matrix2.topKPerColumn(AL, k, indices, scores, start * k);
+    }
+
+    /**
+     * Grow the buffers to hold at least cols columns, at least doubling them so a few calls reach the widest size
+     */
+    private void reserve(int cols) {
+        if(cols <= capacity)
+            return;
+        capacity = Math.min(chunkSize, Math.max(cols, 2 * capacity));
+        buffers = new float[][]{new float[width * capacity], new float[width * capacity]};
+        maxBuffer = new float[capacity];
+        outputs = null;
+        shortOutputs = null;
+    }
+
+    /**
+     * Buffers for a chunk of the given number of columns. Those of a whole chunk and the last short size are kept,
+     * so repeated calls with the same number of samples don't allocate.
+     */
+    private Matrix2[] outputs(int cols) {
+        if(cols == chunkSize) {
+            if(outputs == null) {
+                outputs = chunkOutputs(chunkSize);
+            }
+            return outputs;
+        }
+        if(shortOutputs == null || shortOutputs[0].cols() != cols) {
+            shortOutputs = chunkOutputs(cols);
+        }
+        return shortOutputs;
+    }
+
+    /**
+     * Output of each layer for a chunk of the given number of columns, alternating between the two buffers,
+     * followed by a row for the max of each column and its broadcast to the output rows
+     */
+    private Matrix2[] chunkOutputs(int cols) {
+        Matrix2[] r = new Matrix2[layers.length + 2];
+        for (int l = 0; l < layers.length; l++) {
+            r[l] = Matrix2.wrap(buffers[l % 2], 0, layers[l].getUnits(), cols, Matrix2.Layout.ROW_MAJOR);
+        }
+        r[layers.length] = Matrix2.wrap(maxBuffer, 0, 1, cols, Matrix2.Layout.ROW_MAJOR);
+        r[layers.length + 1] = r[layers.length].broadcastRow(layers[layers.length - 1].getUnits());
+        return r;
+    }
+
+    /**
+     * Work on the output of the last layer for a chunk of columns starting at start
+     */
+    private interface ChunkTask {
+        void run(Matrix2 AL, int start);
+    }
+
+}
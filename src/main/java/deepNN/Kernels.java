@@ -0,0 +1,491 @@
+package deepNN;
+
+/**
+ * Element-wise and reduction kernels used by Matrix2.
+ * Each kernel is a plain counted loop over a contiguous range of a float array, without virtual calls,
+ * so the JIT can inline and unroll it, and the simple arithmetic ones are friendly to auto-vectorization.
+ * Loops calling Math.exp or Math.log (exp, log, sigmoid and the kernels built on them) stay scalar.
+ * Reductions keep 4 independent accumulators, always combined in the same order, to break the dependency
+ * chain of a single sum. The JIT doesn't vectorize them as written, since that would reorder float additions.
+ *
+ * Kernels are selected with the Unary and Binary enums, so callers can pass an operation around without
+ * allocating anything. kernelOf() maps the ElementWiseOp classes of Matrix2 to their kernel, any other op
+ * runs through a generic loop.
+ */
+final class Kernels {
+
+    /**
+     * dst = op(a), with up to two scalar parameters s and t
+     */
+    enum Unary {
+        COPY, MUL, ADD, DIV, SCALAR_MINUS, CLAMP, RELU, SIGMOID, EXP, LOG, SQRT, SQUARE, GREATER, LOWER, EQ
+    }
+
+    /**
+     * dst = op(a, b), with an optional scalar parameter s.
+     * The _GRAD and _COST ones are the fused activation gradients and loss terms used in training.
+     */
+    enum Binary {
+        ADD, SUB, MUL, DIV, ADD_SCALED, GREATER, LOWER, EQ, MAX, MIN,
+        RELU_GRAD, SIGMOID_GRAD, SOFTMAX_GRAD, BCE_COST, BCE_GRAD
+    }
+
+    private Kernels() {}
+
+    /*-------------------------- Dispatch --------------------------*/
+
+    static void unary(Unary op, float s, float t, float[] a, int aOff, float[] dst, int dOff, int n) {
+        switch (op) {
+            case COPY: System.arraycopy(a, aOff, dst, dOff, n); break;
+            case MUL: mul(a, aOff, s, dst, dOff, n); break;
+            case ADD: add(a, aOff, s, dst, dOff, n); break;
+            case DIV: div(a, aOff, s, dst, dOff, n); break;
+            case SCALAR_MINUS: scalarMinus(a, aOff, s, dst, dOff, n); break;
+            case CLAMP: clamp(a, aOff, s, dst, dOff, n); break;
+            case RELU: relu(a, aOff, dst, dOff, n); break;
+            case SIGMOID: sigmoid(a, aOff, dst, dOff, n); break;
+            case EXP: exp(a, aOff, dst, dOff, n); break;
+            case LOG: log(a, aOff, dst, dOff, n); break;
+            case SQRT: sqrt(a, aOff, dst, dOff, n); break;
+            case SQUARE: mul(a, aOff, a, aOff, dst, dOff, n); break;
+            case GREATER: greater(a, aOff, s, dst, dOff, n); break;
+            case LOWER: lower(a, aOff, s, dst, dOff, n); break;
+            case EQ: eq(a, aOff, s, t, dst, dOff, n); break;
+            default: throw new IllegalArgumentException("Unknown kernel: " + op);
+        }
+    }
+
+    static void binary(Binary op, float s, float[] a, int aOff, float[] b, int bOff, float[] dst, int dOff, int n) {
+        switch (op) {
+            case ADD: add(a, aOff, b, bOff, dst, dOff, n); break;
+            case SUB: sub(a, aOff, b, bOff, dst, dOff, n); break;
+            case MUL: mul(a, aOff, b, bOff, dst, dOff, n); break;
+            case DIV: div(a, aOff, b, bOff, dst, dOff, n); break;
+            case ADD_SCALED: addScaled(a, aOff, b, bOff, s, dst, dOff, n); break;
+            case GREATER: greater(a, aOff, b, bOff, dst, dOff, n); break;
+            case LOWER: lower(a, aOff, b, bOff, dst, dOff, n); break;
+            case EQ: eq(a, aOff, b, bOff, s, dst, dOff, n); break;
+            case MAX: max(a, aOff, b, bOff, dst, dOff, n); break;
+            case MIN: min(a, aOff, b, bOff, dst, dOff, n); break;
+            case RELU_GRAD: reluGrad(a, aOff, b, bOff, dst, dOff, n); break;
+            case SIGMOID_GRAD: sigmoidGrad(a, aOff, b, bOff, dst, dOff, n); break;
+            case SOFTMAX_GRAD: softmaxGrad(a, aOff, b, bOff, dst, dOff, n); break;
+            case BCE_COST: bceCost(a, aOff, b, bOff, s, dst, dOff, n); break;
+            case BCE_GRAD: bceGrad(a, aOff, b, bOff, dst, dOff, n); break;
+            default: throw new IllegalArgumentException("Unknown kernel: " + op);
+        }
+    }
+
+    /**
+     * Kernel of a built-in ElementWiseOp, null if it has none
+     */
+    static Unary kernelOf(Matrix2.ElementWiseOp op) {
+        Class<?> type = op.getClass();
+        if(type == Matrix2.MulOp.class) {
+            return Unary.MUL;
+        } else if(type == Matrix2.AddOp.class || type == Matrix2.SubOp.class) {
+            return Unary.ADD;
+        } else if(type == Matrix2.DivOp.class) {
+            return Unary.DIV;
+        } else if(type == Matrix2.ScalarMinusOp.class) {
+            return Unary.SCALAR_MINUS;
+        } else if(type == Matrix2.ClampOp.class) {
+            return Unary.CLAMP;
+        } else if(op == Matrix2.PowerOp.SQ_INSTANCE) {
+            return Unary.SQUARE;
+        } else if(type == Matrix2.ReluOp.class) {
+            return Unary.RELU;
+        } else if(type == Matrix2.SigmoidOp.class) {
+            return Unary.SIGMOID;
+        } else if(type == Matrix2.ExpOp.class) {
+            return Unary.EXP;
+        } else if(type == Matrix2.LogOp.class) {
+            return Unary.LOG;
+        } else if(type == Matrix2.SqrtOp.class) {
+            return Unary.SQRT;
+        }
+        return null;
+    }
+
+    /**
+     * Scalar parameter for the kernel of a built-in ElementWiseOp
+     */
+    static float paramOf(Matrix2.ElementWiseOp op) {
+        if(op.getClass() == Matrix2.SubOp.class) {
+            return -((Matrix2.ScalarOp)op).s;
+        }
+        return op instanceof Matrix2.ScalarOp ? ((Matrix2.ScalarOp)op).s : 0;
+    }
+
+    /**
+     * dst = op(src), using the kernel of op when there is one
+     */
+    static void apply(Matrix2.ElementWiseOp op, float[] src, int sOff, float[] dst, int dOff, int n) {
+        Unary kernel = kernelOf(op);
+        if(kernel != null) {
+            unary(kernel, paramOf(op), 0, src, sOff, dst, dOff, n);
+        } else {
+            for (int i = 0; i < n; i++) {
+                dst[dOff + i] = op.apply(src[sOff + i]);
+            }
+        }
+    }
+
+
+    /*-------------------------- Element-wise --------------------------*/
+
+    private static void mul(float[] a, int aOff, float s, float[] dst, int dOff, int n) {
+        for (int i = 0; i < n; i++) {
+            dst[dOff + i] = a[aOff + i] * s;
+        }
+    }
+
+    private static void add(float[] a, int aOff, float s, float[] dst, int dOff, int n) {
+        for (int i = 0; i < n; i++) {
+            dst[dOff + i] = a[aOff + i] + s;
+        }
+    }
+
+    private static void div(float[] a, int aOff, float s, float[] dst, int dOff, int n) {
+        for (int i = 0; i < n; i++) {
+            dst[dOff + i] = a[aOff + i] / s;
+        }
+    }
+
+    private static void scalarMinus(float[] a, int aOff, float s, float[] dst, int dOff, int n) {
+        for (int i = 0; i < n; i++) {
+            dst[dOff + i] = s - a[aOff + i];
+        }
+    }
+
+    private static void clamp(float[] a, int aOff, float min, float[] dst, int dOff, int n) {
+        for (int i = 0; i < n; i++) {
+            dst[dOff + i] = Math.max(a[aOff + i], min);
+        }
+    }
+
+    private static void relu(float[] a, int aOff, float[] dst, int dOff, int n) {
+        for (int i = 0; i < n; i++) {
+            dst[dOff + i] = Math.max(0, a[aOff + i]);
+        }
+    }
+
+    private static void sigmoid(float[] a, int aOff, float[] dst, int dOff, int n) {
+        for (int i = 0; i < n; i++) {
+            dst[dOff + i] = 1f / (1f + (float)Math.exp(-a[aOff + i]));
+        }
+    }
+
+    private static void exp(float[] a, int aOff, float[] dst, int dOff, int n) {
+        for (int i = 0; i < n; i++) {
+            dst[dOff + i] = (float)Math.exp(a[aOff + i]);
+        }
+    }
+
+    private static void log(float[] a, int aOff, float[] dst, int dOff, int n) {
+        for (int i = 0; i < n; i++) {
+            dst[dOff + i] = (float)Math.log(a[aOff + i]);
+        }
+    }
+
+    private static void sqrt(float[] a, int aOff, float[] dst, int dOff, int n) {
+        for (int i = 0; i < n; i++) {
+            dst[dOff + i] = (float)Math.sqrt(a[aOff + i]);
+        }
+    }
+
+    private static void greater(float[] a, int aOff, float s, float[] dst, int dOff, int n) {
+        for (int i = 0; i < n; i++) {
+            dst[dOff + i] = a[aOff + i] > s ? 1f : 0f;
+        }
+    }
+
+    private static void lower(float[] a, int aOff, float s, float[] dst, int dOff, int n) {
+        for (int i = 0; i < n; i++) {
+            dst[dOff + i] = a[aOff + i] < s ? 1f : 0f;
+        }
+    }
+
+    private static void eq(float[] a, int aOff, float s, float epsilon, float[] dst, int dOff, int n) {
+        for (int i = 0; i < n; i++) {
+            dst[dOff + i] = Math.abs(a[aOff + i] - s) < epsilon ? 1f : 0f;
+        }
+    }
+
+    private static void add(float[] a, int aOff, float[] b, int bOff, float[] dst, int dOff, int n) {
+        for (int i = 0; i < n; i++) {
+            dst[dOff + i] = a[aOff + i] + b[bOff + i];
+        }
+    }
+
+    private static void sub(float[] a, int aOff, float[] b, int bOff, float[] dst, int dOff, int n) {
+        for (int i = 0; i < n; i++) {
+            dst[dOff + i] = a[aOff + i] - b[bOff + i];
+        }
+    }
+
+    private static void mul(float[] a, int aOff, float[] b, int bOff, float[] dst, int dOff, int n) {
+        for (int i = 0; i < n; i++) {
+            dst[dOff + i] = a[aOff + i] * b[bOff + i];
+        }
+    }
+
+    private static void div(float[] a, int aOff, float[] b, int bOff, float[] dst, int dOff, int n) {
+        for (int i = 0; i < n; i++) {
+            dst[dOff + i] = a[aOff + i] / b[bOff + i];
+        }
+    }
+
+    /**
+     * dst = a + s * b
+     */
+    private static void addScaled(float[] a, int aOff, float[] b, int bOff, float s, float[] dst, int dOff, int n) {
+        for (int i = 0; i < n; i++) {
+            dst[dOff + i] = a[aOff + i] + s * b[bOff + i];
+        }
+    }
+
+    private static void greater(float[] a, int aOff, float[] b, int bOff, float[] dst, int dOff, int n) {
+        for (int i = 0; i < n; i++) {
+            dst[dOff + i] = a[aOff + i] > b[bOff + i] ? 1f : 0f;
+        }
+    }
+
+    private static void lower(float[] a, int aOff, float[] b, int bOff, float[] dst, int dOff, int n) {
+        for (int i = 0; i < n; i++) {
+            dst[dOff + i] = a[aOff + i] < b[bOff + i] ? 1f : 0f;
+        }
+    }
+
+    private static void eq(float[] a, int aOff, float[] b, int bOff, float epsilon, float[] dst, int dOff, int n) {
+        for (int i = 0; i < n; i++) {
+            dst[dOff + i] = Math.abs(a[aOff + i] - b[bOff + i]) < epsilon ? 1f : 0f;
+        }
+    }
+
+    private static void max(float[] a, int aOff, float[] b, int bOff, float[] dst, int dOff, int n) {
+        for (int i = 0; i < n; i++) {
+            dst[dOff + i] = Math.max(a[aOff + i], b[bOff + i]);
+        }
+    }
+
+    private static void min(float[] a, int aOff, float[] b, int bOff, float[] dst, int dOff, int n) {
+        for (int i = 0; i < n; i++) {
+            dst[dOff + i] = Math.min(a[aOff + i], b[bOff + i]);
+        }
+    }
+
+
+    /**
+     * dz = da * (z > 0)
+     */
+    private static void reluGrad(float[] da, int aOff, float[] z, int zOff, float[] dst, int dOff, int n) {
+        for (int i = 0; i < n; i++) {
+            dst[dOff + i] = da[aOff + i] * (z[zOff + i] > 0 ? 1f : 0f);
+        }
+    }
+
+    /**
+     * dz = da * s * (1 - s), with s = sigmoid(z)
+     */
+    private static void sigmoidGrad(float[] da, int aOff, float[] z, int zOff, float[] dst, int dOff, int n) {
+        for (int i = 0; i < n; i++) {
+            float s = 1f / (1f + (float)Math.exp(-z[zOff + i]));
+            dst[dOff + i] = da[aOff + i] * s * (1 - s);
+        }
+    }
+
+    /**
+     * dz = da * s * (1 - s), with s the softmax output
+     */
+    private static void softmaxGrad(float[] da, int aOff, float[] s, int sOff, float[] dst, int dOff, int n) {
+        for (int i = 0; i < n; i++) {
+            float si = s[sOff + i];
+            dst[dOff + i] = da[aOff + i] * si * (1 - si);
+        }
+    }
+
+    /**
+     * y * log(al) + (1-y) * log(1-al), with al and 1-al clamped to epsilon
+     */
+    private static void bceCost(float[] y, int yOff, float[] al, int alOff, float epsilon, float[] dst, int dOff, int n) {
+        for (int i = 0; i < n; i++) {
+            float yi = y[yOff + i];
+            float ali = al[alOff + i];
+            float logAL = (float)Math.log(Math.max(ali, epsilon));
+            float log1AL = (float)Math.log(Math.max(1 - ali, epsilon));
+            dst[dOff + i] = yi * logAL + (1 - yi) * log1AL;
+        }
+    }
+
+    /**
+     * - ((y / al) - ((1-y) / (1-al)))
+     */
+    private static void bceGrad(float[] y, int yOff, float[] al, int alOff, float[] dst, int dOff, int n) {
+        for (int i = 0; i < n; i++) {
+            float yi = y[yOff + i];
+            float ali = al[alOff + i];
+            dst[dOff + i] = ((yi / ali) - ((1 - yi) / (1 - ali))) * -1f;
+        }
+    }
+
+
+    /*-------------------------- Optimizer updates --------------------------*/
+
+    /**
+     * v = beta * v + (1 - beta) * g, p = p - lr * v
+     */
+    static void momentum(float[] p, int pOff, float[] g, int gOff, float[] v, int vOff, int n, float lr, float beta) {
+        for (int i = 0; i < n; i++) {
+            float vi = beta * v[vOff + i] + (1 - beta) * g[gOff + i];
+            v[vOff + i] = flushSubnormal(vi);
+            p[pOff + i] = flushSubnormal(p[pOff + i] - lr * vi);
+        }
+    }
+
+    /**
+     * s = beta * s + (1 - beta) * g^2, p = p - lr * g / (sqrt(s) + epsilon)
+     */
+    static void rmsProp(float[] p, int pOff, float[] g, int gOff, float[] s, int sOff, int n, float lr, float beta,
+                        float epsilon) {
+        for (int i = 0; i < n; i++) {
+            float gi = g[gOff + i];
+            float si = beta * s[sOff + i] + (1 - beta) * gi * gi;
+            s[sOff + i] = flushSubnormal(si);
+            p[pOff + i] = flushSubnormal(p[pOff + i] - lr * gi / ((float) Math.sqrt(si) + epsilon));
+        }
+    }
+
+    /**
+     * m = beta1 * m + (1 - beta1) * g, v = beta2 * v + (1 - beta2) * g^2,
+     * p = p - lr * (m / c1) / (sqrt(v / c2) + epsilon), where c1 and c2 are the bias corrections
+     */
+    static void adam(float[] p, int pOff, float[] g, int gOff, float[] m, int mOff, float[] v, int vOff, int n,
+                     float lr, float beta1, float beta2, float epsilon, float c1, float c2) {
+        for (int i = 0; i < n; i++) {
+            float gi = g[gOff + i];
+            float mi = beta1 * m[mOff + i] + (1 - beta1) * gi;
+            float vi = beta2 * v[vOff + i] + (1 - beta2) * gi * gi;
+            m[mOff + i] = flushSubnormal(mi);
+            v[vOff + i] = flushSubnormal(vi);
+            p[pOff + i] = flushSubnormal(p[pOff + i] - lr * (mi / c1) / ((float) Math.sqrt(vi / c2) + epsilon));
+        }
+    }
+
+    /**
+     * Zero for subnormal values (flush to zero).
+     * Adaptive updates shrink the weights of dead units and their moments towards zero without ever reaching it,
+     * and every product with a subnormal float is many times slower, which would slow down all the next steps.
+     */
+    private static float flushSubnormal(float x) {
+        return Math.abs(x) < Float.MIN_NORMAL ? 0 : x;
+    }
+
+    /*-------------------------- Reductions --------------------------*/
+
+    static float sum(float[] a, int off, int n) {
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        for (; i + 3 < n; i += 4) {
+            s0 += a[off + i];
+            s1 += a[off + i + 1];
+            s2 += a[off + i + 2];
+            s3 += a[off + i + 3];
+        }
+        for (; i < n; i++) {
+            s0 += a[off + i];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    static float max(float[] a, int off, int n) {
+        float m0 = Float.NEGATIVE_INFINITY, m1 = m0, m2 = m0, m3 = m0;
+        int i = 0;
+        for (; i + 3 < n; i += 4) {
+            m0 = Math.max(m0, a[off + i]);
+            m1 = Math.max(m1, a[off + i + 1]);
+            m2 = Math.max(m2, a[off + i + 2]);
+            m3 = Math.max(m3, a[off + i + 3]);
+        }
+        for (; i < n; i++) {
+            m0 = Math.max(m0, a[off + i]);
+        }
+        return Math.max(Math.max(m0, m1), Math.max(m2, m3));
+    }
+
+    static float min(float[] a, int off, int n) {
+        float m0 = Float.POSITIVE_INFINITY, m1 = m0, m2 = m0, m3 = m0;
+        int i = 0;
+        for (; i + 3 < n; i += 4) {
+            m0 = Math.min(m0, a[off + i]);
+            m1 = Math.min(m1, a[off + i + 1]);
+            m2 = Math.min(m2, a[off + i + 2]);
+            m3 = Math.min(m3, a[off + i + 3]);
+        }
+        for (; i < n; i++) {
+            m0 = Math.min(m0, a[off + i]);
+        }
+        return Math.min(Math.min(m0, m1), Math.min(m2, m3));
+    }
+
+    /**
+     * Sum of CHUNK_SIZE partial sums, always combined in order so the result doesn't depend on the number of threads
+     */
+    static float sum(ComputePool pool, float[] a, int off, int n) {
+        int chunks = (n + ComputePool.CHUNK_SIZE - 1) / ComputePool.CHUNK_SIZE;
+        if(chunks <= 1) {
+            return sum(a, off, n);
+        }
+
+        float total = 0;
+        if(pool.isParallel(n)) {
+            float[] partials = new float[chunks];
+            pool.forEachRange(chunks, 1, (start, end) -> {
+                for (int c = start; c < end; c++) {
+                    partials[c] = sum(a, off + c * ComputePool.CHUNK_SIZE, chunkLength(c, n));
+                }
+            });
+            for (int c = 0; c < chunks; c++) {
+                total += partials[c];
+            }
+        } else {
+            for (int c = 0; c < chunks; c++) {
+                total += sum(a, off + c * ComputePool.CHUNK_SIZE, chunkLength(c, n));
+            }
+        }
+        return total;
+    }
+
+    static float max(ComputePool pool, float[] a, int off, int n) {
+        if(!pool.isParallel(n)) {
+            return max(a, off, n);
+        }
+        int chunks = (n + ComputePool.CHUNK_SIZE - 1) / ComputePool.CHUNK_SIZE;
+        float[] partials = new float[chunks];
+        pool.forEachRange(chunks, 1, (start, end) -> {
+            for (int c = start; c < end; c++) {
+                partials[c] = max(a, off + c * ComputePool.CHUNK_SIZE, chunkLength(c, n));
+            }
+        });
+        return max(partials, 0, chunks);
+    }
+
+    static float min(ComputePool pool, float[] a, int off, int n) {
+        if(!pool.isParallel(n)) {
+            return min(a, off, n);
+        }
+        int chunks = (n + ComputePool.CHUNK_SIZE - 1) / ComputePool.CHUNK_SIZE;
+        float[] partials = new float[chunks];
+        pool.forEachRange(chunks, 1, (start, end) -> {
+            for (int c = start; c < end; c++) {
+                partials[c] = min(a, off + c * ComputePool.CHUNK_SIZE, chunkLength(c, n));
+            }
+        });
+        return min(partials, 0, chunks);
+    }
+
+    private static int chunkLength(int chunk, int n) {
+        return Math.min(ComputePool.CHUNK_SIZE, n - chunk * ComputePool.CHUNK_SIZE);
+    }
+
+}
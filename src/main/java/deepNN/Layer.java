@@ -0,0 +1,285 @@
+package deepNN;
+
+import deepNN.activation.ActivationFunction;
+import deepNN.optimizer.Optimizer;
+
+/**
+ * Fully connected layer of a DeepNeuralNetwork: A = g(W * Aprev + b)
+ * Owns its parameters, their gradients, the optimizer state and the values of the current training step
+ * (Z, A, dZ and dA), so training works with array indices and doesn't allocate per step.
+ *
+ * @see DeepNeuralNetwork#getLayer(int)
+ */
+public final class Layer {
+
+    private final int inputs;
+    private final int units;
+    private final ActivationFunction activation;
+    private final Matrix2 W;
+    private final Matrix2 b;
+    private final Matrix2 dW;
+    private final Matrix2 db;
+    private Matrix2[] wState;
+    private Matrix2[] bState;
+    private StepBuffers full;
+    private StepBuffers last;
+    private StepBuffers current;
+
+    /**
+     * Creates a layer with zero parameters
+     * @param inputs number of units of the previous layer (or features for the first one)
+     * @param units number of units of this layer
+     * @param activation activation function of this layer
+     */
+    Layer(int inputs, int units, ActivationFunction activation) {
+        if(inputs < 1 || units < 1)
+            throw new IllegalArgumentException("Invalid layer shape (" + units + ", " + inputs + ")");
+        this.inputs = inputs;
+        this.units = units;
+        this.activation = activation;
+        this.W = new Matrix2(units, inputs);
+        this.b = new Matrix2(units, 1);
+        this.dW = new Matrix2(units, inputs);
+        this.db = new Matrix2(units, 1);
+        allocateOptimizer(0);
+    }
+
+    /**
+     * Creates a replica of a layer: it shares the parameters and optimizer state of source but has its own gradients
+     * and step buffers.
+     * Replicas process different samples of the same mini-batch in parallel.
+     */
+    Layer(Layer source) {
+        this.inputs = source.inputs;
+        this.units = source.units;
+        this.activation = source.activation;
+        this.W = source.W;
+        this.b = source.b;
+        this.dW = new Matrix2(units, inputs);
+        this.db = new Matrix2(units, 1);
+        this.wState = source.wState;
+        this.bState = source.bState;
+    }
+
+    /**
+     * Creates a prediction only layer with the given parameters, without gradients
+     */
+    Layer(int inputs, int units, ActivationFunction activation, Matrix2 W, Matrix2 b) {
+        this.inputs = inputs;
+        this.units = units;
+        this.activation = activation;
+        this.W = W;
+        this.b = b;
+        this.dW = null;
+        this.db = null;
+    }
+
+    public int getInputs() {
+        return inputs;
+    }
+
+    public int getUnits() {
+        return units;
+    }
+
+    public ActivationFunction getActivation() {
+        return activation;
+    }
+
+    /**
+     * Weights (units x inputs). This is the matrix used by the network, changes are seen by the next train or predict.
+     */
+    public Matrix2 getWeights() {
+        return W;
+    }
+
+    /**
+     * Bias (units x 1). This is the matrix used by the network, changes are seen by the next train or predict.
+     */
+    public Matrix2 getBias() {
+        return b;
+    }
+
+    /**
+     * Prediction only copy of this layer: later changes of the parameters of this layer are not seen by the copy
+     */
+    Layer freeze() {
+        Matrix2 frozenW = Matrix2.copy(W, new Matrix2(units, inputs));
+        Matrix2 frozenB = Matrix2.copy(b, new Matrix2(units, 1));
+        return new Layer(inputs, units, activation, frozenW, frozenB);
+    }
+
+    /**
+     * Random small weights and zero bias
+     */
+    void initialize(long randSeed) {
+        Matrix2.copy(Matrix2.random(units, inputs, randSeed).mul(0.01f), W);
+        Matrix2.copy(Matrix2.zeros(units, 1), b);
+    }
+
+    /**
+     * Allocate zero state for an optimizer with stateSize matrices per parameter
+     */
+    void allocateOptimizer(int stateSize) {
+        this.wState = new Matrix2[stateSize];
+        this.bState = new Matrix2[stateSize];
+        for (int i = 0; i < stateSize; i++) {
+            wState[i] = new Matrix2(units, inputs);
+            bState[i] = new Matrix2(units, 1);
+        }
+    }
+
+    /**
+     * Optimizer state of W, one matrix per state of the optimizer
+     */
+    Matrix2[] weightsState() {
+        return wState;
+    }
+
+    /**
+     * Optimizer state of b, one matrix per state of the optimizer
+     */
+    Matrix2[] biasState() {
+        return bState;
+    }
+
+    /**
+     * Zero the optimizer state, to start training from new parameters
+     */
+    void resetOptimizer() {
+        for (int i = 0; i < wState.length; i++) {
+            wState[i].fill(0);
+            bState[i].fill(0);
+        }
+    }
+
+    /**
+     * Allocate the step buffers for mini-batches of miniBatchSize samples and, if lastSize > 0, for a last
+     * short mini-batch of lastSize samples
+     */
+    void allocate(int miniBatchSize, int lastSize) {
+        int size = units * Math.max(miniBatchSize, lastSize);
+        float[][] data = {new float[size], new float[size], new float[size], new float[size]};
+        this.full = new StepBuffers(units, miniBatchSize, data);
+        this.last = lastSize > 0 ? new StepBuffers(units, lastSize, data) : null;
+        this.current = full;
+    }
+
+    /**
+     * Select the step buffers for a mini-batch with the given number of samples
+     */
+    void select(int cols) {
+        if(full == null)
+            throw new IllegalStateException("Step buffers not allocated");
+        if(cols == full.cols) {
+            current = full;
+        } else if(last != null && cols == last.cols) {
+            current = last;
+        } else {
+            throw new IllegalArgumentException("Invalid mini-batch size: " + cols);
+        }
+    }
+
+    /**
+     * A of the current step
+     */
+    Matrix2 output() {
+        return current.A;
+    }
+
+    /**
+     * dA of the current step, written by the next layer (or the loss function for the output one)
+     */
+    Matrix2 outputGradient() {
+        return current.dA;
+    }
+
+    /**
+     * dZ of the current step, it can be used as scratch before backward
+     */
+    Matrix2 linearGradient() {
+        return current.dZ;
+    }
+
+    /**
+     * Forward pass of the current step: Z = W * Aprev + b, A = g(Z)
+     */
+    Matrix2 forward(Matrix2 Aprev) {
+        //Z = W * A + b, bias added in the same pass as the product
+        Matrix2.gemm(1, W, false, Aprev, false, 0, null, b, null, current.Z);
+        return activation.forward(current.Z, current.A);
+    }
+
+    /**
+     * Backward pass of the current step from dA, computes dW, db and dAprev (skipped if null).
+     * m is the number of samples of the mini-batch, bigger than the columns of Aprev if they are only part of it.
+     */
+    void backward(Matrix2 Aprev, Matrix2 dAprev, float lambda, int m) {
+        Matrix2 dZ = activation.backward(current.dA, current.Z, current.dZ);
+
+        //dW = 1/m * mul(dZ, Aprev.T) + lambda/m * W
+        Matrix2.gemm(1f/m, dZ, false, Aprev, true, lambda / m, W, null, null, dW);
+
+        //db = 1/m * sumCols(dZ)
+        dZ.sumColumnsInto(db).mulInPlace(1f/m);
+
+        //dAprev = mul(W.T, dZ)
+        if(dAprev != null) {
+            W.mulTransAInto(dZ, dAprev);
+        }
+    }
+
+    /**
+     * Add the gradients of another replica to the ones of this layer
+     */
+    void addGradients(Layer other) {
+        dW.addInPlace(other.dW);
+        db.addInPlace(other.db);
+    }
+
+    /**
+     * Update parameters in place using gradient and the optimizer state
+     */
+    void update(Optimizer optimizer, float learningRate, int step) {
+        optimizer.update(W, dW, wState, learningRate, step);
+        optimizer.update(b, db, bState, learningRate, step);
+    }
+
+    /**
+     * sum(W^2), squares are written into dW
+     */
+    float weightsSquareSum() {
+        return W.squareInto(dW).sum();
+    }
+
+    /**
+     * Forward pass without keeping intermediate values, A = g(W * Aprev + b) is written into A.
+     * Element-wise activations are fused with the product.
+     */
+    Matrix2 predict(Matrix2 Aprev, Matrix2 A) {
+        if(activation.elementWiseOp() != null) {
+            return Matrix2.gemm(1, W, false, Aprev, false, 0, null, b, activation.elementWiseOp(), A);
+        }
+        Matrix2.gemm(1, W, false, Aprev, false, 0, null, b, null, A);
+        return activation.forward(A, A);
+    }
+
+    /**
+     * Z, A, dZ and dA for a mini-batch size, wrapping arrays that can be shared with other sizes
+     */
+    private static class StepBuffers {
+        public final int cols;
+        public final Matrix2 Z;
+        public final Matrix2 A;
+        public final Matrix2 dZ;
+        public final Matrix2 dA;
+        public StepBuffers(int rows, int cols, float[][] data) {
+            this.cols = cols;
+            this.Z = Matrix2.wrap(data[0], 0, rows, cols, Matrix2.Layout.ROW_MAJOR);
+            this.A = Matrix2.wrap(data[1], 0, rows, cols, Matrix2.Layout.ROW_MAJOR);
+            this.dZ = Matrix2.wrap(data[2], 0, rows, cols, Matrix2.Layout.ROW_MAJOR);
+            this.dA = Matrix2.wrap(data[3], 0, rows, cols, Matrix2.Layout.ROW_MAJOR);
+        }
+    }
+
+}
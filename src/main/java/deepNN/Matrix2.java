@@ -1,5 +1,6 @@
 package deepNN;
 
+import java.nio.FloatBuffer;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
 import java.util.Arrays;
@@ -7,10 +8,20 @@ import java.util.Collection;
 import java.util.Random;
 
 /**
- * A nxm float immutable matrix.
- * Operations are not optimized (for academic purposes only)
- * Data is stored in a single float array, one row after the other.
- * All operations are immutable and they always create a new matrix.
+ * A nxm float matrix.
+ * Matrix multiplication runs on a blocked GEMM engine (Gemm) and the common element-wise operations and
+ * reductions on simple loops the JIT can inline and unroll (Kernels). Any other ElementWiseOp runs through a generic loop.
+ * Data is stored in a single float array, one row after the other (Layout.ROW_MAJOR) or one column after the
+ * other (Layout.COLUMN_MAJOR). Operations work with any mix of layouts, and the fast paths cover both of them.
+ * By default operations create a new matrix. Each one also has a form that writes the result into a given
+ * destination matrix (xxxInto, or a trailing dst argument for static methods) and element-wise operations
+ * have a form that overwrites this matrix (xxxInPlace), so hot loops can reuse buffers.
+ * A matrix can also be a view over the data of another one, reading element (row, col) at
+ * offset + row * rowStride + col * colStride. Views share data with their source, so no copies are made:
+ * transposeView, columnsView, rowsView and blockView select a part of a matrix, while broadcastCol and
+ * broadcastRow repeat a vector with a stride of 0. Operations read views directly, only destinations need
+ * contiguous rows or columns (so broadcast views are read-only).
+ * Matrices created by operations are taken from the MatrixArena bound to the current thread, if there is one.
  * 
  * @author Matias Leone
  */
@@ -20,19 +31,48 @@ public class Matrix2 {
     public static final float EPSILON = 0.000001f;
     
     private final float[] data;
+    private final int offset;
     private final int rows;
     private final int cols;
+    private final int rowStride;
+    private final int colStride;
+    
+    private static final ThreadLocal<LineBuffers> LINE_BUFFERS = new ThreadLocal<LineBuffers>() {
+        @Override
+        protected LineBuffers initialValue() {
+            return new LineBuffers();
+        }
+    };
     
     /*-------------------------- Creating methods --------------------------*/
     
     public Matrix2(int rows, int cols) {
+        this(rows, cols, Layout.ROW_MAJOR);
+    }
+    
+    public Matrix2(int rows, int cols, Layout layout) {
         if(rows < 1 || cols < 1)
             error("Invalid shape (" + rows + ", " + cols + ")");
         this.rows = rows;
         this.cols = cols;
+        this.rowStride = layout == Layout.ROW_MAJOR ? cols : 1;
+        this.colStride = layout == Layout.ROW_MAJOR ? 1 : rows;
+        this.offset = 0;
         this.data = new float[rows * cols];
     }
     
+    /**
+     * View over data, element (row, col) is at offset + row * rowStride + col * colStride
+     */
+    private Matrix2(float[] data, int offset, int rows, int cols, int rowStride, int colStride) {
+        this.data = data;
+        this.offset = offset;
+        this.rows = rows;
+        this.cols = cols;
+        this.rowStride = rowStride;
+        this.colStride = colStride;
+    }
+    
     public Matrix2(int rows, int cols, float[] data) {
         this(rows, cols);
         if(data.length != this.data.length)
@@ -96,35 +136,292 @@ public class Matrix2 {
     }
     
     private int pos(int row, int col) {
-        return row * this.cols + col;
+        return this.offset + row * this.rowStride + col * this.colStride;
     }
     
     private int rowStart(int row) {
-        return row * this.cols;
+        return pos(row, 0);
     }
     
-    private int rowEnd(int row) {
-        return rowStart(row) + this.cols;
+    private int size() {
+        return this.rows * this.cols;
     }
     
-    private Matrix2 emptyCopy() {
-        return new Matrix2(this.rows, this.cols);
+    /**
+     * True if the elements of this matrix are contiguous in data, one row after the other, starting at offset
+     */
+    private boolean isPacked() {
+        return this.colStride == 1 && this.rowStride == this.cols;
     }
     
-    private static void copyRow(Matrix2 src, int srcRow, Matrix2 dst, int dstRow) {
-        System.arraycopy(src.data, src.rowStart(srcRow), dst.data, dst.rowStart(dstRow), src.cols);
+    /**
+     * True if the elements of this matrix are contiguous in data, one column after the other, starting at offset
+     */
+    private boolean isPackedByColumns() {
+        return this.rowStride == 1 && this.colStride == this.rows;
+    }
+    
+    /**
+     * True if columns are contiguous but rows are not, so work is better done column by column
+     */
+    private boolean isColumnOriented() {
+        return this.colStride != 1 && this.rowStride == 1;
+    }
+    
+    /**
+     * Array with n contiguous elements of a row starting at col, from index rowOffset(row, col).
+     * If the row is not contiguous it is gathered into line.
+     */
+    private float[] rowData(int row, int col, int n, float[] line) {
+        if(this.colStride == 1)
+            return this.data;
+        int src = pos(row, col);
+        if(this.colStride == 0) {
+            Arrays.fill(line, 0, n, this.data[src]);
+        } else {
+            for (int i = 0; i < n; i++) {
+                line[i] = this.data[src];
+                src += this.colStride;
+            }
+        }
+        return line;
+    }
+    
+    private int rowOffset(int row, int col) {
+        return this.colStride == 1 ? pos(row, col) : 0;
+    }
+    
+    /**
+     * New matrix for the result of an operation, taken from the arena bound to the current thread if any
+     */
+    private static Matrix2 allocate(int rows, int cols, Layout layout) {
+        MatrixArena arena = MatrixArena.current();
+        return arena != null ? arena.allocate(rows, cols, layout) : new Matrix2(rows, cols, layout);
+    }
+    
+    /**
+     * Matrix over data[offset:offset + rows * cols], stored with the given layout
+     */
+    static Matrix2 wrap(float[] data, int offset, int rows, int cols, Layout layout) {
+        if(rows < 1 || cols < 1)
+            error("Invalid shape (" + rows + ", " + cols + ")");
+        if(offset < 0 || offset + rows * cols > data.length)
+            error("Invalid data range: " + offset + ", length: " + data.length);
+        boolean rowMajor = layout == Layout.ROW_MAJOR;
+        return new Matrix2(data, offset, rows, cols, rowMajor ? cols : 1, rowMajor ? 1 : rows);
+    }
+    
+    /**
+     * Copy rows elements of src, starting at srcPos, into a column.
+     * The position of src is changed.
+     */
+    void setColumn(int col, FloatBuffer src, int srcPos) {
+        if(this.rowStride == 1) {
+            src.position(srcPos);
+            src.get(this.data, pos(0, col), this.rows);
+        } else {
+            for (int row = 0; row < this.rows; row++) {
+                this.data[pos(row, col)] = src.get(srcPos + row);
+            }
+        }
+    }
+    
+    /**
+     * Copy a column into dst, starting at dstPos. The position of dst is changed.
+     */
+    void getColumn(int col, FloatBuffer dst, int dstPos) {
+        dst.position(dstPos);
+        if(this.rowStride == 1) {
+            dst.put(this.data, pos(0, col), this.rows);
+        } else {
+            for (int row = 0; row < this.rows; row++) {
+                dst.put(this.data[pos(row, col)]);
+            }
+        }
     }
     
-    private static void copyColumn(Matrix2 src, int srcCol, Matrix2 dst, int dstCol) {
-        for (int row = 0; row < src.rows; row++) {
-            dst.set(row, dstCol, src.get(row, srcCol));
+    /**
+     * Copy rows * cols elements of src, starting at srcPos, into this matrix in row-major order.
+     * The position of src is changed.
+     */
+    void setData(FloatBuffer src, int srcPos) {
+        if(this.colStride == 1 && this.rowStride == this.cols) {
+            src.position(srcPos);
+            src.get(this.data, this.offset, this.rows * this.cols);
+        } else {
+            for (int row = 0; row < this.rows; row++) {
+                for (int col = 0; col < this.cols; col++) {
+                    this.data[pos(row, col)] = src.get(srcPos++);
+                }
+            }
+        }
+    }
+
+    /**
+     * Copy all elements into dst in row-major order, starting at dstPos. The position of dst is changed.
+     */
+    void getData(FloatBuffer dst, int dstPos) {
+        dst.position(dstPos);
+        if(this.colStride == 1 && this.rowStride == this.cols) {
+            dst.put(this.data, this.offset, this.rows * this.cols);
+        } else {
+            for (int row = 0; row < this.rows; row++) {
+                for (int col = 0; col < this.cols; col++) {
+                    dst.put(this.data[pos(row, col)]);
+                }
+            }
         }
     }
+
+    private Matrix2 emptyCopy() {
+        return allocate(this.rows, this.cols, layout());
+    }
+    
+    private static void copyRow(Matrix2 src, int srcRow, Matrix2 dst, int dstRow) {
+        float[] line = LINE_BUFFERS.get().a(src.cols);
+        System.arraycopy(src.rowData(srcRow, 0, src.cols, line), src.rowOffset(srcRow, 0), dst.data, dst.rowStart(dstRow), src.cols);
+    }
     
     private static void error(String msg) {
         throw new RuntimeException(msg);
     }
     
+    static void checkDst(Matrix2 dst, int rows, int cols) {
+        if(dst.rows != rows || dst.cols != cols)
+            error("Invalid destination shape (" + dst.rows + ", " + dst.cols + "), expected (" + rows + ", " + cols + ")");
+        boolean rowsContiguous = dst.colStride == 1 && (dst.rows == 1 || dst.rowStride >= dst.cols);
+        boolean colsContiguous = dst.rowStride == 1 && (dst.cols == 1 || dst.colStride >= dst.rows);
+        if(!rowsContiguous && !colsContiguous)
+            error("Invalid destination, only views with contiguous rows or columns can be written");
+    }
+    
+    private static void checkBinary(Matrix2 a, Matrix2 b, Matrix2 dst) {
+        if(!sameShape(a, b))
+            error("Invalid shapes, a: " + a + ", b: " + b);
+        checkDst(dst, a.rows, a.cols);
+    }
+    
+    /**
+     * Rows per parallel task, so each one covers about ComputePool.CHUNK_SIZE elements
+     */
+    private static int rowGrain(Matrix2 m) {
+        return Math.max(1, ComputePool.CHUNK_SIZE / m.cols);
+    }
+    
+    /**
+     * Columns per parallel task, so each one covers about ComputePool.CHUNK_SIZE elements
+     */
+    private static int colGrain(Matrix2 m) {
+        return Math.max(16, ComputePool.CHUNK_SIZE / m.rows);
+    }
+    
+    private static void checkNoAlias(Matrix2 dst, Matrix2 a, Matrix2 b) {
+        if(overlaps(dst, a) || (b != null && overlaps(dst, b)))
+            error("Destination can't be one of the operands");
+    }
+    
+    /**
+     * True if a and b may share elements, that is, they span intersecting ranges of the same array
+     * (matrices from an arena share arrays without overlapping)
+     */
+    private static boolean overlaps(Matrix2 a, Matrix2 b) {
+        return a.data == b.data && a.offset <= b.pos(b.rows - 1, b.cols - 1) && b.offset <= a.pos(a.rows - 1, a.cols - 1);
+    }
+    
+    /**
+     * Element-wise operations can write over an operand, but only if both read the data in the same way
+     */
+    private static void checkOverlap(Matrix2 dst, Matrix2 m) {
+        if(overlaps(dst, m) && (dst.offset != m.offset || dst.rowStride != m.rowStride || dst.colStride != m.colStride))
+            error("Destination can't be a different view of an operand");
+    }
+    
+    
+    /*-------------------------- Kernel dispatch --------------------------*/
+    
+    
+    /**
+     * dst = op(m). Packed matrices run as a single loop over the data, views row by row.
+     * Column-major destinations are walked column by column, as rows of their transposed views.
+     */
+    private static Matrix2 unary(Kernels.Unary op, float s, float t, Matrix2 m, Matrix2 dst) {
+        checkDst(dst, m.rows, m.cols);
+        checkOverlap(dst, m);
+        if(dst.colStride != 1) {
+            runUnary(op, s, t, Matrix2.transposeView(m), Matrix2.transposeView(dst));
+        } else {
+            runUnary(op, s, t, m, dst);
+        }
+        return dst;
+    }
+    
+    private static void runUnary(Kernels.Unary op, float s, float t, Matrix2 m, Matrix2 dst) {
+        ComputePool pool = ComputePool.current();
+        int n = m.size();
+        boolean parallel = pool.isParallel(n);
+        if(m.isPacked() && dst.isPacked()) {
+            if(parallel) {
+                pool.forEachRange(n, ComputePool.CHUNK_SIZE, (start, end) -> Kernels.unary(op, s, t, m.data, m.offset + start, dst.data, dst.offset + start, end - start));
+            } else {
+                Kernels.unary(op, s, t, m.data, m.offset, dst.data, dst.offset, n);
+            }
+        } else if(parallel) {
+            pool.forEachRange(m.rows, rowGrain(m), (start, end) -> unaryRows(op, s, t, m, dst, start, end));
+        } else {
+            unaryRows(op, s, t, m, dst, 0, m.rows);
+        }
+    }
+    
+    private static void unaryRows(Kernels.Unary op, float s, float t, Matrix2 m, Matrix2 dst, int rowStart, int rowEnd) {
+        float[] line = LINE_BUFFERS.get().a(m.cols);
+        for (int row = rowStart; row < rowEnd; row++) {
+            Kernels.unary(op, s, t, m.rowData(row, 0, m.cols, line), m.rowOffset(row, 0), dst.data, dst.rowStart(row), m.cols);
+        }
+    }
+    
+    /**
+     * dst = op(a, b). Packed matrices run as a single loop over the data, views row by row.
+     * Column-major destinations are walked column by column, as rows of their transposed views.
+     */
+    private static Matrix2 binary(Kernels.Binary op, float s, Matrix2 a, Matrix2 b, Matrix2 dst) {
+        checkBinary(a, b, dst);
+        checkOverlap(dst, a);
+        checkOverlap(dst, b);
+        if(dst.colStride != 1) {
+            runBinary(op, s, Matrix2.transposeView(a), Matrix2.transposeView(b), Matrix2.transposeView(dst));
+        } else {
+            runBinary(op, s, a, b, dst);
+        }
+        return dst;
+    }
+    
+    private static void runBinary(Kernels.Binary op, float s, Matrix2 a, Matrix2 b, Matrix2 dst) {
+        ComputePool pool = ComputePool.current();
+        int n = a.size();
+        boolean parallel = pool.isParallel(n);
+        if(a.isPacked() && b.isPacked() && dst.isPacked()) {
+            if(parallel) {
+                pool.forEachRange(n, ComputePool.CHUNK_SIZE, (start, end) -> Kernels.binary(op, s, a.data, a.offset + start, b.data, b.offset + start, dst.data, dst.offset + start, end - start));
+            } else {
+                Kernels.binary(op, s, a.data, a.offset, b.data, b.offset, dst.data, dst.offset, n);
+            }
+        } else if(parallel) {
+            pool.forEachRange(a.rows, rowGrain(a), (start, end) -> binaryRows(op, s, a, b, dst, start, end));
+        } else {
+            binaryRows(op, s, a, b, dst, 0, a.rows);
+        }
+    }
+    
+    private static void binaryRows(Kernels.Binary op, float s, Matrix2 a, Matrix2 b, Matrix2 dst, int rowStart, int rowEnd) {
+        LineBuffers buffers = LINE_BUFFERS.get();
+        float[] lineA = buffers.a(a.cols);
+        float[] lineB = buffers.b(a.cols);
+        for (int row = rowStart; row < rowEnd; row++) {
+            Kernels.binary(op, s, a.rowData(row, 0, a.cols, lineA), a.rowOffset(row, 0),
+                    b.rowData(row, 0, b.cols, lineB), b.rowOffset(row, 0), dst.data, dst.rowStart(row), a.cols);
+        }
+    }
+    
     /*-------------------------- Instance methods --------------------------*/
     
     public float get(int row, int col) {
@@ -143,6 +440,20 @@ public class Matrix2 {
         return this.cols;
     }
     
+    /**
+     * COLUMN_MAJOR if columns are contiguous in memory and rows are not, ROW_MAJOR otherwise
+     */
+    public Layout layout() {
+        return isColumnOriented() ? Layout.COLUMN_MAJOR : Layout.ROW_MAJOR;
+    }
+    
+    /**
+     * Copy of this matrix stored with the given layout
+     */
+    public Matrix2 toLayout(Layout layout) {
+        return Matrix2.copy(this, allocate(this.rows, this.cols, layout));
+    }
+    
     public Matrix2 apply(ElementWiseOp op) {
         return Matrix2.apply(this, op);
     }
@@ -152,55 +463,55 @@ public class Matrix2 {
     }
 
     public Matrix2 mul(float s) {
-        return apply(new MulOp(s));
+        return mulInto(s, emptyCopy());
     }
     
     public Matrix2 add(float s) {
-        return apply(new AddOp(s));
+        return addInto(s, emptyCopy());
     }
     
     public Matrix2 sub(float s) {
-        return apply(new SubOp(s));
+        return subInto(s, emptyCopy());
     }
     
     public Matrix2 div(float s) {
-        return apply(new DivOp(s));
+        return divInto(s, emptyCopy());
     }
     
     public Matrix2 scalarMinus(float s) {
-        return apply(new ScalarMinusOp(s));
+        return scalarMinusInto(s, emptyCopy());
     }
     
     public Matrix2 oneMinus() {
-        return apply(ScalarMinusOp.ONE_MINUS);
+        return oneMinusInto(emptyCopy());
     }
     
     public Matrix2 log() {
-        return apply(LogOp.INSTANCE);
+        return logInto(emptyCopy());
     }
 
     public Matrix2 exp() {
-        return apply(ExpOp.INSTANCE);
+        return expInto(emptyCopy());
     }
     
     public Matrix2 sigmoid() {
-        return apply(SigmoidOp.INSTANCE);
+        return sigmoidInto(emptyCopy());
     }
     
     public Matrix2 relu() {
-        return apply(ReluOp.INSTANCE);
+        return reluInto(emptyCopy());
     }
     
     public Matrix2 greater(float v) {
-        return apply(new GreaterOp(v));
+        return greaterInto(v, emptyCopy());
     }
     
     public Matrix2 lower(float v) {
-        return apply(new LowerOp(v));
+        return lowerInto(v, emptyCopy());
     }
 
     public Matrix2 eq(float v, float epsilon) {
-        return apply(new EqualsOp(v, epsilon));
+        return eqInto(v, epsilon, emptyCopy());
     }
 
     public Matrix2 eq(float v) {
@@ -212,17 +523,25 @@ public class Matrix2 {
     }
     
     public Matrix2 square() {
-        return apply(PowerOp.SQ_INSTANCE);
+        return squareInto(emptyCopy());
     }
     
     public Matrix2 sqrt() {
-        return apply(SqrtOp.INSTANCE);
+        return sqrtInto(emptyCopy());
     }
     
     public Matrix2 mul(Matrix2 m) {
         return Matrix2.mul(this, m);
     }
     
+    public Matrix2 mulTransA(Matrix2 m) {
+        return Matrix2.mulTransA(this, m);
+    }
+    
+    public Matrix2 mulTransB(Matrix2 m) {
+        return Matrix2.mulTransB(this, m);
+    }
+    
     public Matrix2 add(Matrix2 m) {
         return Matrix2.add(this, m);
     }
@@ -250,6 +569,22 @@ public class Matrix2 {
     public Matrix2 broadcastRow(int rows) {
         return Matrix2.broadcastRow(this, rows);
     }
+    
+    public Matrix2 transposeView() {
+        return Matrix2.transposeView(this);
+    }
+    
+    public Matrix2 columnsView(int colStart, int colEnd) {
+        return Matrix2.columnsView(this, colStart, colEnd);
+    }
+    
+    public Matrix2 rowsView(int rowStart, int rowEnd) {
+        return Matrix2.rowsView(this, rowStart, rowEnd);
+    }
+    
+    public Matrix2 blockView(int rowStart, int rowEnd, int colStart, int colEnd) {
+        return Matrix2.blockView(this, rowStart, rowEnd, colStart, colEnd);
+    }
 
     public Matrix2 sumColumns() {
         return Matrix2.sumColumns(this);
@@ -288,268 +623,838 @@ public class Matrix2 {
     }
 
     public Matrix2 clamp(float v) {
-        return apply(new ClampOp(v));
+        return clampInto(v, emptyCopy());
     }
 
     public Matrix2 clampToZero() {
-        return apply(ClampOp.CLAMP_ZERO);
+        return clampToZeroInto(emptyCopy());
     }
 
-    @Override
-    public String toString() {
-        StringBuilder sb = new StringBuilder(this.data.length * 2);
-        sb.append("Shape(").append(this.rows).append(", ").append(this.cols).append(")\n");
-        sb.append("[");
-        int maxRows = Math.min(this.rows, 6);
-        int maxCols = Math.min(this.cols, 10);
-        for (int row = 0; row < maxRows; row++) {
-            sb.append("[");
-            for (int col = 0; col < maxCols; col++) {
-                if(col > 0) {
-                    sb.append(", ");
-                }
-                sb.append(FORMAT.format(get(row, col)));
-            }
-            if(this.cols > maxCols)
-                sb.append(", ...");
-            sb.append("]");
-            if(row < this.rows - 1)
-                sb.append("\n");
-        }
-        if(this.rows > maxRows)
-            sb.append("...");
-        sb.append("]");
-        
-        return sb.toString();
+    /*-------------------------- Destination and in-place methods --------------------------*/
+    
+    
+    public Matrix2 applyInto(ElementWiseOp op, Matrix2 dst) {
+        return Matrix2.apply(this, op, dst);
     }
-
-    @Override
-    public boolean equals(Object obj) {
-        if (this == obj) {
-            return true;
-        }
-        if (obj == null) {
-            return false;
-        }
-        if (getClass() != obj.getClass()) {
-            return false;
-        }
-        final Matrix2 m = (Matrix2) obj;
-        if(m.cols != this.cols || m.rows != this.rows)
-            return false;
-        
-        return Arrays.equals(this.data, m.data);
+    
+    public Matrix2 applyInPlace(ElementWiseOp op) {
+        return Matrix2.apply(this, op, this);
     }
-
     
+    public Matrix2 applyBoolInto(ElementWiseBoolOp op, Matrix2 dst) {
+        return Matrix2.applyBool(this, op, dst);
+    }
     
+    public Matrix2 applyBoolInPlace(ElementWiseBoolOp op) {
+        return Matrix2.applyBool(this, op, this);
+    }
     
-    /*-------------------------- Static methods --------------------------*/
+    public Matrix2 mulInto(float s, Matrix2 dst) {
+        return unary(Kernels.Unary.MUL, s, 0, this, dst);
+    }
     
+    public Matrix2 mulInPlace(float s) {
+        return mulInto(s, this);
+    }
     
-    public static Matrix2 broadcastCol(Matrix2 m, int cols) {
-        if(m.cols > 1)
-            error("Broadcast not supported for more than 1 column");
-        if(cols < 1)
-            error("Invalid broadcast number: " + cols);
-        
-        Matrix2 r = new Matrix2(m.rows, cols);
-        for (int col = 0; col < cols; col++) {
-            Matrix2.copyColumn(m, 0, r, col);
-        }
-        return r;
+    public Matrix2 addInto(float s, Matrix2 dst) {
+        return unary(Kernels.Unary.ADD, s, 0, this, dst);
     }
     
-    public static Matrix2 broadcastRow(Matrix2 m, int rows) {
-        if(m.rows > 1)
-            error("Broadcast not supported for more than 1 row");
-        if(rows < 1)
-            error("Invalid broadcast number: " + rows);
-        
-        Matrix2 r = new Matrix2(rows, m.cols);
-        for (int row = 0; row < rows; row++) {
-            Matrix2.copyRow(m, 0, r, row);
-        }
-        return r;
+    public Matrix2 addInPlace(float s) {
+        return addInto(s, this);
     }
     
-    public static Matrix2 sumColumns(Matrix2 m) {
-        Matrix2 r = new Matrix2(m.rows, 1);
-        for (int row = 0; row < m.rows; row++) {
-            float sum = 0;
-            for (int col = 0; col < m.cols; col++) {
-                sum += m.get(row, col);
-            }
-            r.set(row, 0, sum);
-        }
-        return r;
+    public Matrix2 subInto(float s, Matrix2 dst) {
+        return unary(Kernels.Unary.ADD, -s, 0, this, dst);
     }
     
-    public static Matrix2 sumRows(Matrix2 m) {
-        Matrix2 r = new Matrix2(1, m.cols);
-        for (int col = 0; col < m.cols; col++) {
-            float sum = 0;
-            for (int row = 0; row < m.rows; row++) {
-                sum += m.get(row, col);
-            }
-            r.set(0, col, sum);
-        }
-        return r;
+    public Matrix2 subInPlace(float s) {
+        return subInto(s, this);
     }
     
-    public static float sum(Matrix2 m) {
-        float sum = 0;
-        for (int row = 0; row < m.rows; row++) {
-            for (int col = 0; col < m.cols; col++) {
-                sum += m.get(row, col);
-            }
-        }
-        return sum;
+    public Matrix2 divInto(float s, Matrix2 dst) {
+        return unary(Kernels.Unary.DIV, s, 0, this, dst);
     }
-
-    public static Matrix2 maxPerColumn(Matrix2 m) {
-        Matrix2 r = new Matrix2(1, m.cols);
-        for (int col = 0; col < m.cols; col++) {
-            float max = Float.NEGATIVE_INFINITY;
-            for (int row = 0; row < m.rows; row++) {
-                max = Math.max(max, m.get(row, col));
-            }
-            r.set(0, col, max);
-        }
-        return r;
+    
+    public Matrix2 divInPlace(float s) {
+        return divInto(s, this);
     }
-
-    public static Matrix2 maxPerRow(Matrix2 m) {
-        Matrix2 r = new Matrix2(m.rows, 1);
-        for (int row = 0; row < m.rows; row++) {
-            float max = Float.NEGATIVE_INFINITY;
-            for (int col = 0; col < m.cols; col++) {
-                max = Math.max(max, m.get(row, col));
-            }
-            r.set(row, 0, max);
-        }
-        return r;
+    
+    public Matrix2 scalarMinusInto(float s, Matrix2 dst) {
+        return unary(Kernels.Unary.SCALAR_MINUS, s, 0, this, dst);
     }
-
-    public static Matrix2 minPerColumn(Matrix2 m) {
-        Matrix2 r = new Matrix2(1, m.cols);
-        for (int col = 0; col < m.cols; col++) {
-            float min = Float.POSITIVE_INFINITY;
-            for (int row = 0; row < m.rows; row++) {
-                min = Math.min(min, m.get(row, col));
-            }
-            r.set(0, col, min);
-        }
-        return r;
+    
+    public Matrix2 scalarMinusInPlace(float s) {
+        return scalarMinusInto(s, this);
     }
-
-    public static Matrix2 minPerRow(Matrix2 m) {
-        Matrix2 r = new Matrix2(m.rows, 1);
-        for (int row = 0; row < m.rows; row++) {
-            float min = Float.POSITIVE_INFINITY;
-            for (int col = 0; col < m.cols; col++) {
-                min = Math.min(min, m.get(row, col));
-            }
-            r.set(row, 0, min);
-        }
-        return r;
+    
+    public Matrix2 oneMinusInto(Matrix2 dst) {
+        return unary(Kernels.Unary.SCALAR_MINUS, 1, 0, this, dst);
     }
-
-    public static float max(Matrix2 m) {
-        float max = Float.NEGATIVE_INFINITY;
-        for (int row = 0; row < m.rows; row++) {
-            for (int col = 0; col < m.cols; col++) {
-                max = Math.max(max, m.get(row, col));
-            }
-        }
-        return max;
+    
+    public Matrix2 oneMinusInPlace() {
+        return oneMinusInto(this);
     }
-
-    public static float min(Matrix2 m) {
-        float min = Float.POSITIVE_INFINITY;
+    
+    public Matrix2 logInto(Matrix2 dst) {
+        return unary(Kernels.Unary.LOG, 0, 0, this, dst);
+    }
+    
+    public Matrix2 logInPlace() {
+        return logInto(this);
+    }
+    
+    public Matrix2 expInto(Matrix2 dst) {
+        return unary(Kernels.Unary.EXP, 0, 0, this, dst);
+    }
+    
+    public Matrix2 expInPlace() {
+        return expInto(this);
+    }
+    
+    public Matrix2 sigmoidInto(Matrix2 dst) {
+        return unary(Kernels.Unary.SIGMOID, 0, 0, this, dst);
+    }
+    
+    public Matrix2 sigmoidInPlace() {
+        return sigmoidInto(this);
+    }
+    
+    public Matrix2 reluInto(Matrix2 dst) {
+        return unary(Kernels.Unary.RELU, 0, 0, this, dst);
+    }
+    
+    public Matrix2 reluInPlace() {
+        return reluInto(this);
+    }
+    
+    public Matrix2 greaterInto(float v, Matrix2 dst) {
+        return unary(Kernels.Unary.GREATER, v, 0, this, dst);
+    }
+    
+    public Matrix2 greaterInPlace(float v) {
+        return greaterInto(v, this);
+    }
+    
+    public Matrix2 lowerInto(float v, Matrix2 dst) {
+        return unary(Kernels.Unary.LOWER, v, 0, this, dst);
+    }
+    
+    public Matrix2 lowerInPlace(float v) {
+        return lowerInto(v, this);
+    }
+    
+    public Matrix2 eqInto(float v, float epsilon, Matrix2 dst) {
+        return unary(Kernels.Unary.EQ, v, epsilon, this, dst);
+    }
+    
+    public Matrix2 eqInPlace(float v, float epsilon) {
+        return eqInto(v, epsilon, this);
+    }
+    
+    public Matrix2 powInto(float s, Matrix2 dst) {
+        return applyInto(new PowerOp(s), dst);
+    }
+    
+    public Matrix2 powInPlace(float s) {
+        return applyInPlace(new PowerOp(s));
+    }
+    
+    public Matrix2 squareInto(Matrix2 dst) {
+        return unary(Kernels.Unary.SQUARE, 0, 0, this, dst);
+    }
+    
+    public Matrix2 squareInPlace() {
+        return squareInto(this);
+    }
+    
+    public Matrix2 sqrtInto(Matrix2 dst) {
+        return unary(Kernels.Unary.SQRT, 0, 0, this, dst);
+    }
+    
+    public Matrix2 sqrtInPlace() {
+        return sqrtInto(this);
+    }
+    
+    public Matrix2 clampInto(float v, Matrix2 dst) {
+        return unary(Kernels.Unary.CLAMP, v, 0, this, dst);
+    }
+    
+    public Matrix2 clampInPlace(float v) {
+        return clampInto(v, this);
+    }
+    
+    public Matrix2 clampToZeroInto(Matrix2 dst) {
+        return unary(Kernels.Unary.CLAMP, EPSILON, 0, this, dst);
+    }
+    
+    public Matrix2 clampToZeroInPlace() {
+        return clampToZeroInto(this);
+    }
+    
+    public Matrix2 addInto(Matrix2 m, Matrix2 dst) {
+        return Matrix2.add(this, m, dst);
+    }
+    
+    public Matrix2 addInPlace(Matrix2 m) {
+        return Matrix2.add(this, m, this);
+    }
+    
+    public Matrix2 subInto(Matrix2 m, Matrix2 dst) {
+        return Matrix2.sub(this, m, dst);
+    }
+    
+    public Matrix2 subInPlace(Matrix2 m) {
+        return Matrix2.sub(this, m, this);
+    }
+    
+    public Matrix2 mulEWInto(Matrix2 m, Matrix2 dst) {
+        return Matrix2.mulEW(this, m, dst);
+    }
+    
+    public Matrix2 mulEWInPlace(Matrix2 m) {
+        return Matrix2.mulEW(this, m, this);
+    }
+    
+    public Matrix2 divEWInto(Matrix2 m, Matrix2 dst) {
+        return Matrix2.divEW(this, m, dst);
+    }
+    
+    public Matrix2 divEWInPlace(Matrix2 m) {
+        return Matrix2.divEW(this, m, this);
+    }
+    
+    /**
+     * this = this + s * m
+     */
+    public Matrix2 addScaledInPlace(Matrix2 m, float s) {
+        return Matrix2.addScaled(this, m, s, this);
+    }
+    
+    public Matrix2 mulInto(Matrix2 m, Matrix2 dst) {
+        return Matrix2.mul(this, m, dst);
+    }
+    
+    public Matrix2 mulTransAInto(Matrix2 m, Matrix2 dst) {
+        return Matrix2.mulTransA(this, m, dst);
+    }
+    
+    public Matrix2 mulTransBInto(Matrix2 m, Matrix2 dst) {
+        return Matrix2.mulTransB(this, m, dst);
+    }
+    
+    public Matrix2 transposeInto(Matrix2 dst) {
+        return Matrix2.transpose(this, dst);
+    }
+    
+    public Matrix2 broadcastColInto(Matrix2 dst) {
+        return Matrix2.broadcastCol(this, dst);
+    }
+    
+    public Matrix2 broadcastRowInto(Matrix2 dst) {
+        return Matrix2.broadcastRow(this, dst);
+    }
+    
+    public Matrix2 sumColumnsInto(Matrix2 dst) {
+        return Matrix2.sumColumns(this, dst);
+    }
+    
+    public Matrix2 sumRowsInto(Matrix2 dst) {
+        return Matrix2.sumRows(this, dst);
+    }
+    
+    public Matrix2 maxPerRowInto(Matrix2 dst) {
+        return Matrix2.maxPerRow(this, dst);
+    }
+    
+    public Matrix2 maxPerColumnInto(Matrix2 dst) {
+        return Matrix2.maxPerColumn(this, dst);
+    }
+    
+    public Matrix2 minPerRowInto(Matrix2 dst) {
+        return Matrix2.minPerRow(this, dst);
+    }
+    
+    public Matrix2 minPerColumnInto(Matrix2 dst) {
+        return Matrix2.minPerColumn(this, dst);
+    }
+    
+    public Matrix2 copyInto(Matrix2 dst) {
+        return Matrix2.copy(this, dst);
+    }
+    
+    public Matrix2 fill(float v) {
+        checkDst(this, this.rows, this.cols);
+        if(this.colStride != 1) {
+            Matrix2.transposeView(this).fill(v);
+            return this;
+        }
+        for (int row = 0; row < this.rows; row++) {
+            Arrays.fill(this.data, rowStart(row), rowStart(row) + this.cols, v);
+        }
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(size() * 2);
+        sb.append("Shape(").append(this.rows).append(", ").append(this.cols).append(")\n");
+        sb.append("[");
+        int maxRows = Math.min(this.rows, 6);
+        int maxCols = Math.min(this.cols, 10);
+        for (int row = 0; row < maxRows; row++) {
+            sb.append("[");
+            for (int col = 0; col < maxCols; col++) {
+                if(col > 0) {
+                    sb.append(", ");
+                }
+                sb.append(FORMAT.format(get(row, col)));
+            }
+            if(this.cols > maxCols)
+                sb.append(", ...");
+            sb.append("]");
+            if(row < this.rows - 1)
+                sb.append("\n");
+        }
+        if(this.rows > maxRows)
+            sb.append("...");
+        sb.append("]");
+        
+        return sb.toString();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null) {
+            return false;
+        }
+        if (getClass() != obj.getClass()) {
+            return false;
+        }
+        final Matrix2 m = (Matrix2) obj;
+        if(m.cols != this.cols || m.rows != this.rows)
+            return false;
+        
+        for (int row = 0; row < this.rows; row++) {
+            for (int col = 0; col < this.cols; col++) {
+                if(Float.floatToIntBits(this.data[pos(row, col)]) != Float.floatToIntBits(m.data[m.pos(row, col)]))
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    
+    
+    
+    /*-------------------------- Static methods --------------------------*/
+    
+    
+    /**
+     * View that repeats the column vector m cols times, without copying it.
+     * It shares data with m and can't be used as a destination.
+     */
+    public static Matrix2 broadcastCol(Matrix2 m, int cols) {
+        if(m.cols > 1)
+            error("Broadcast not supported for more than 1 column");
+        if(cols < 1)
+            error("Invalid broadcast number: " + cols);
+        return new Matrix2(m.data, m.offset, m.rows, cols, m.rowStride, 0);
+    }
+    
+    public static Matrix2 broadcastCol(Matrix2 m, Matrix2 dst) {
+        checkNoAlias(dst, m, null);
+        return Matrix2.copy(Matrix2.broadcastCol(m, dst.cols), dst);
+    }
+    
+    /**
+     * View that repeats the row vector m rows times, without copying it.
+     * It shares data with m and can't be used as a destination.
+     */
+    public static Matrix2 broadcastRow(Matrix2 m, int rows) {
+        if(m.rows > 1)
+            error("Broadcast not supported for more than 1 row");
+        if(rows < 1)
+            error("Invalid broadcast number: " + rows);
+        return new Matrix2(m.data, m.offset, rows, m.cols, 0, m.colStride);
+    }
+    
+    public static Matrix2 broadcastRow(Matrix2 m, Matrix2 dst) {
+        checkNoAlias(dst, m, null);
+        return Matrix2.copy(Matrix2.broadcastRow(m, dst.rows), dst);
+    }
+    
+    public static Matrix2 sumColumns(Matrix2 m) {
+        return Matrix2.sumColumns(m, allocate(m.rows, 1, Layout.ROW_MAJOR));
+    }
+    
+    public static Matrix2 sumColumns(Matrix2 m, Matrix2 dst) {
+        checkDst(dst, m.rows, 1);
+        checkNoAlias(dst, m, null);
+        if(m.isColumnOriented()) {
+            Matrix2.sumRows(Matrix2.transposeView(m), Matrix2.transposeView(dst));
+            return dst;
+        }
+        ComputePool pool = ComputePool.current();
+        if(pool.isParallel(m.size())) {
+            pool.forEachRange(m.rows, rowGrain(m), (start, end) -> sumColumnsRange(m, dst, start, end));
+        } else {
+            sumColumnsRange(m, dst, 0, m.rows);
+        }
+        return dst;
+    }
+    
+    private static void sumColumnsRange(Matrix2 m, Matrix2 dst, int rowStart, int rowEnd) {
+        float[] line = LINE_BUFFERS.get().a(m.cols);
+        for (int row = rowStart; row < rowEnd; row++) {
+            dst.data[dst.rowStart(row)] = Kernels.sum(m.rowData(row, 0, m.cols, line), m.rowOffset(row, 0), m.cols);
+        }
+    }
+    
+    public static Matrix2 sumRows(Matrix2 m) {
+        return Matrix2.sumRows(m, allocate(1, m.cols, Layout.ROW_MAJOR));
+    }
+    
+    public static Matrix2 sumRows(Matrix2 m, Matrix2 dst) {
+        checkDst(dst, 1, m.cols);
+        checkNoAlias(dst, m, null);
+        if(m.isColumnOriented()) {
+            Matrix2.sumColumns(Matrix2.transposeView(m), Matrix2.transposeView(dst));
+            return dst;
+        }
+        ComputePool pool = ComputePool.current();
+        if(pool.isParallel(m.size())) {
+            pool.forEachRange(m.cols, colGrain(m), (start, end) -> sumRowsRange(m, dst, start, end));
+        } else {
+            sumRowsRange(m, dst, 0, m.cols);
+        }
+        return dst;
+    }
+    
+    private static void sumRowsRange(Matrix2 m, Matrix2 dst, int colStart, int colEnd) {
+        accumulateRows(Kernels.Binary.ADD, 0, m, dst, colStart, colEnd);
+    }
+    
+    public static float sum(Matrix2 m) {
+        if(!m.isPacked() && !m.isPackedByColumns())
+            return Matrix2.sum(Matrix2.sumColumns(m));
+        return Kernels.sum(ComputePool.current(), m.data, m.offset, m.size());
+    }
+
+    public static Matrix2 maxPerColumn(Matrix2 m) {
+        return Matrix2.maxPerColumn(m, allocate(1, m.cols, Layout.ROW_MAJOR));
+    }
+    
+    public static Matrix2 maxPerColumn(Matrix2 m, Matrix2 dst) {
+        checkDst(dst, 1, m.cols);
+        checkNoAlias(dst, m, null);
+        if(m.isColumnOriented()) {
+            Matrix2.maxPerRow(Matrix2.transposeView(m), Matrix2.transposeView(dst));
+            return dst;
+        }
+        ComputePool pool = ComputePool.current();
+        if(pool.isParallel(m.size())) {
+            pool.forEachRange(m.cols, colGrain(m), (start, end) -> maxPerColumnRange(m, dst, start, end));
+        } else {
+            maxPerColumnRange(m, dst, 0, m.cols);
+        }
+        return dst;
+    }
+    
+    private static void maxPerColumnRange(Matrix2 m, Matrix2 dst, int colStart, int colEnd) {
+        accumulateRows(Kernels.Binary.MAX, Float.NEGATIVE_INFINITY, m, dst, colStart, colEnd);
+    }
+
+    /**
+     * Row index of the max value of each column written into dst[dstPos:dstPos+cols], the first one on ties.
+     * Single pass over m in row order, keeping the max of each column in a per-thread line.
+     */
+    public static int[] argMaxPerColumn(Matrix2 m, int[] dst, int dstPos) {
+        if(dstPos < 0 || dstPos + m.cols > dst.length)
+            error("Invalid destination range: " + dstPos + " + " + m.cols + " > " + dst.length);
+        LineBuffers buffers = LINE_BUFFERS.get();
+        float[] line = buffers.a(m.cols);
+        float[] best = buffers.b(m.cols);
+
+        float[] first = m.rowData(0, 0, m.cols, line);
+        System.arraycopy(first, m.rowOffset(0, 0), best, 0, m.cols);
+        Arrays.fill(dst, dstPos, dstPos + m.cols, 0);
+        for (int row = 1; row < m.rows; row++) {
+            float[] data = m.rowData(row, 0, m.cols, line);
+            int off = m.rowOffset(row, 0);
+            for (int col = 0; col < m.cols; col++) {
+                float v = data[off + col];
+                if(v > best[col]) {
+                    best[col] = v;
+                    dst[dstPos + col] = row;
+                }
+            }
+        }
+        return dst;
+    }
+
+    /**
+     * The k max values of each column, in descending order, and their row indices. Those of column col are written
+     * into scores and indices at [pos + col * k, pos + (col + 1) * k), the first row wins on ties.
+     * Single pass over m in row order, each value is inserted in the sorted k values of its column.
+     */
+    public static void topKPerColumn(Matrix2 m, int k, int[] indices, float[] scores, int pos) {
+        if(k < 1 || k > m.rows)
+            error("Invalid k: " + k + " for " + m.rows + " rows");
+        int n = m.cols * k;
+        if(pos < 0 || pos + n > indices.length || pos + n > scores.length)
+            error("Invalid destination range: " + pos + " + " + n);
+        float[] line = LINE_BUFFERS.get().a(m.cols);
+
+        Arrays.fill(indices, pos, pos + n, -1);
         for (int row = 0; row < m.rows; row++) {
+            float[] data = m.rowData(row, 0, m.cols, line);
+            int off = m.rowOffset(row, 0);
             for (int col = 0; col < m.cols; col++) {
-                min = Math.min(min, m.get(row, col));
+                float v = data[off + col];
+                int base = pos + col * k;
+                //Empty slots are filled first, then only bigger values enter
+                int j = base + k - 1;
+                if(indices[j] >= 0 && !(v > scores[j]))
+                    continue;
+                while (j > base && (indices[j - 1] < 0 || v > scores[j - 1])) {
+                    indices[j] = indices[j - 1];
+                    scores[j] = scores[j - 1];
+                    j--;
+                }
+                indices[j] = row;
+                scores[j] = v;
             }
         }
-        return min;
+    }
+
+    public static Matrix2 maxPerRow(Matrix2 m) {
+        return Matrix2.maxPerRow(m, allocate(m.rows, 1, Layout.ROW_MAJOR));
+    }
+    
+    public static Matrix2 maxPerRow(Matrix2 m, Matrix2 dst) {
+        checkDst(dst, m.rows, 1);
+        checkNoAlias(dst, m, null);
+        if(m.isColumnOriented()) {
+            Matrix2.maxPerColumn(Matrix2.transposeView(m), Matrix2.transposeView(dst));
+            return dst;
+        }
+        ComputePool pool = ComputePool.current();
+        if(pool.isParallel(m.size())) {
+            pool.forEachRange(m.rows, rowGrain(m), (start, end) -> maxPerRowRange(m, dst, start, end));
+        } else {
+            maxPerRowRange(m, dst, 0, m.rows);
+        }
+        return dst;
+    }
+    
+    private static void maxPerRowRange(Matrix2 m, Matrix2 dst, int rowStart, int rowEnd) {
+        float[] line = LINE_BUFFERS.get().a(m.cols);
+        for (int row = rowStart; row < rowEnd; row++) {
+            dst.data[dst.rowStart(row)] = Kernels.max(m.rowData(row, 0, m.cols, line), m.rowOffset(row, 0), m.cols);
+        }
+    }
+
+    public static Matrix2 minPerColumn(Matrix2 m) {
+        return Matrix2.minPerColumn(m, allocate(1, m.cols, Layout.ROW_MAJOR));
+    }
+    
+    public static Matrix2 minPerColumn(Matrix2 m, Matrix2 dst) {
+        checkDst(dst, 1, m.cols);
+        checkNoAlias(dst, m, null);
+        if(m.isColumnOriented()) {
+            Matrix2.minPerRow(Matrix2.transposeView(m), Matrix2.transposeView(dst));
+            return dst;
+        }
+        ComputePool pool = ComputePool.current();
+        if(pool.isParallel(m.size())) {
+            pool.forEachRange(m.cols, colGrain(m), (start, end) -> minPerColumnRange(m, dst, start, end));
+        } else {
+            minPerColumnRange(m, dst, 0, m.cols);
+        }
+        return dst;
+    }
+    
+    private static void minPerColumnRange(Matrix2 m, Matrix2 dst, int colStart, int colEnd) {
+        accumulateRows(Kernels.Binary.MIN, Float.POSITIVE_INFINITY, m, dst, colStart, colEnd);
+    }
+    
+    /**
+     * dst[colStart:colEnd] = op(...op(op(init, row 0), row 1)..., row n) for the rows of m
+     */
+    private static void accumulateRows(Kernels.Binary op, float init, Matrix2 m, Matrix2 dst, int colStart, int colEnd) {
+        int n = colEnd - colStart;
+        int dOff = dst.pos(0, colStart);
+        Arrays.fill(dst.data, dOff, dOff + n, init);
+        float[] line = LINE_BUFFERS.get().a(n);
+        for (int row = 0; row < m.rows; row++) {
+            Kernels.binary(op, 0, dst.data, dOff, m.rowData(row, colStart, n, line), m.rowOffset(row, colStart), dst.data, dOff, n);
+        }
+    }
+
+    public static Matrix2 minPerRow(Matrix2 m) {
+        return Matrix2.minPerRow(m, allocate(m.rows, 1, Layout.ROW_MAJOR));
+    }
+    
+    public static Matrix2 minPerRow(Matrix2 m, Matrix2 dst) {
+        checkDst(dst, m.rows, 1);
+        checkNoAlias(dst, m, null);
+        if(m.isColumnOriented()) {
+            Matrix2.minPerColumn(Matrix2.transposeView(m), Matrix2.transposeView(dst));
+            return dst;
+        }
+        ComputePool pool = ComputePool.current();
+        if(pool.isParallel(m.size())) {
+            pool.forEachRange(m.rows, rowGrain(m), (start, end) -> minPerRowRange(m, dst, start, end));
+        } else {
+            minPerRowRange(m, dst, 0, m.rows);
+        }
+        return dst;
+    }
+    
+    private static void minPerRowRange(Matrix2 m, Matrix2 dst, int rowStart, int rowEnd) {
+        float[] line = LINE_BUFFERS.get().a(m.cols);
+        for (int row = rowStart; row < rowEnd; row++) {
+            dst.data[dst.rowStart(row)] = Kernels.min(m.rowData(row, 0, m.cols, line), m.rowOffset(row, 0), m.cols);
+        }
+    }
+
+    public static float max(Matrix2 m) {
+        if(!m.isPacked() && !m.isPackedByColumns())
+            return Matrix2.max(Matrix2.maxPerRow(m));
+        return Kernels.max(ComputePool.current(), m.data, m.offset, m.size());
+    }
+
+    public static float min(Matrix2 m) {
+        if(!m.isPacked() && !m.isPackedByColumns())
+            return Matrix2.min(Matrix2.minPerRow(m));
+        return Kernels.min(ComputePool.current(), m.data, m.offset, m.size());
     }
     
     public static Matrix2 apply(Matrix2 m, ElementWiseOp op) {
-        Matrix2 r = m.emptyCopy();
+        return Matrix2.apply(m, op, m.emptyCopy());
+    }
+    
+    /**
+     * Element-wise operation written into dst, which can be m itself
+     */
+    public static Matrix2 apply(Matrix2 m, ElementWiseOp op, Matrix2 dst) {
+        Kernels.Unary kernel = Kernels.kernelOf(op);
+        if(kernel != null)
+            return unary(kernel, Kernels.paramOf(op), 0, m, dst);
+        
+        checkDst(dst, m.rows, m.cols);
+        checkOverlap(dst, m);
         for (int row = 0; row < m.rows; row++) {
             for (int col = 0; col < m.cols; col++) {
-                r.set(row, col, op.apply(m.get(row, col)));
+                dst.data[dst.pos(row, col)] = op.apply(m.data[m.pos(row, col)]);
             }
         }
-        return r;
+        return dst;
     }
     
     public static Matrix2 apply(Matrix2 a, Matrix2 b, ElementWise2MatOp op) {
+        return Matrix2.apply(a, b, op, a.emptyCopy());
+    }
+    
+    /**
+     * Element-wise operation between two matrices written into dst, which can be a or b
+     */
+    public static Matrix2 apply(Matrix2 a, Matrix2 b, ElementWise2MatOp op, Matrix2 dst) {
         if(!sameShape(a, b))
             error("Invalid shapes, a: " + a + ", b: " + b);
-        
-        Matrix2 r = a.emptyCopy();
+        checkDst(dst, a.rows, a.cols);
+        checkOverlap(dst, a);
+        checkOverlap(dst, b);
         for (int row = 0; row < a.rows; row++) {
             for (int col = 0; col < a.cols; col++) {
-                r.set(row, col, op.apply(a.get(row, col), b.get(row, col)));
+                dst.data[dst.pos(row, col)] = op.apply(a.data[a.pos(row, col)], b.data[b.pos(row, col)]);
             }
         }
-        return r;
+        return dst;
     }
 
     public static Matrix2 apply(Matrix2 m, ElementWiseBoolOp op) {
-        Matrix2 r = m.emptyCopy();
+        return Matrix2.applyBool(m, op, m.emptyCopy());
+    }
+
+    /**
+     * Boolean element-wise operation written into dst as 1 or 0, which can be m itself
+     */
+    public static Matrix2 applyBool(Matrix2 m, ElementWiseBoolOp op, Matrix2 dst) {
+        checkDst(dst, m.rows, m.cols);
+        checkOverlap(dst, m);
         for (int row = 0; row < m.rows; row++) {
             for (int col = 0; col < m.cols; col++) {
-                boolean result = op.apply(m.get(row, col));
-                r.set(row, col, result ? 1f : 0f);
+                dst.data[dst.pos(row, col)] = op.apply(m.data[m.pos(row, col)]) ? 1f : 0f;
             }
         }
-        return r;
+        return dst;
     }
 
     public static Matrix2 apply(Matrix2 a, Matrix2 b, ElementWiseBoolMat2Op op) {
+        return Matrix2.applyBool(a, b, op, a.emptyCopy());
+    }
+
+    /**
+     * Boolean element-wise operation between two matrices written into dst as 1 or 0, which can be a or b
+     */
+    public static Matrix2 applyBool(Matrix2 a, Matrix2 b, ElementWiseBoolMat2Op op, Matrix2 dst) {
         if(!sameShape(a, b))
             error("Invalid shapes, a: " + a + ", b: " + b);
-
-        Matrix2 r = a.emptyCopy();
+        checkDst(dst, a.rows, a.cols);
+        checkOverlap(dst, a);
+        checkOverlap(dst, b);
         for (int row = 0; row < a.rows; row++) {
             for (int col = 0; col < a.cols; col++) {
-                boolean result = op.apply(a.get(row, col), b.get(row, col));
-                r.set(row, col, result ? 1f : 0f);
+                dst.data[dst.pos(row, col)] = op.apply(a.data[a.pos(row, col)], b.data[b.pos(row, col)]) ? 1f : 0f;
             }
         }
-        return r;
+        return dst;
     }
     
     public static Matrix2 mul(Matrix2 a, Matrix2 b) {
-        if(a.cols != b.rows)
-            error("Invalid shapes, a: " + a + ", b: " + b);
+        return Matrix2.mul(a, b, ComputePool.current());
+    }
+    
+    public static Matrix2 mul(Matrix2 a, Matrix2 b, ComputePool pool) {
+        return Matrix2.gemm(1, a, false, b, false, 0, null, null, null, pool);
+    }
+    
+    public static Matrix2 mul(Matrix2 a, Matrix2 b, Matrix2 dst) {
+        return Matrix2.gemm(1, a, false, b, false, 0, null, null, null, dst, ComputePool.current());
+    }
+    
+    /**
+     * a.T * b, reading a as transposed without creating a copy
+     */
+    public static Matrix2 mulTransA(Matrix2 a, Matrix2 b) {
+        return Matrix2.mulTransA(a, b, ComputePool.current());
+    }
+    
+    public static Matrix2 mulTransA(Matrix2 a, Matrix2 b, ComputePool pool) {
+        return Matrix2.gemm(1, a, true, b, false, 0, null, null, null, pool);
+    }
+    
+    public static Matrix2 mulTransA(Matrix2 a, Matrix2 b, Matrix2 dst) {
+        return Matrix2.gemm(1, a, true, b, false, 0, null, null, null, dst, ComputePool.current());
+    }
+    
+    /**
+     * a * b.T, reading b as transposed without creating a copy
+     */
+    public static Matrix2 mulTransB(Matrix2 a, Matrix2 b) {
+        return Matrix2.mulTransB(a, b, ComputePool.current());
+    }
+    
+    public static Matrix2 mulTransB(Matrix2 a, Matrix2 b, ComputePool pool) {
+        return Matrix2.gemm(1, a, false, b, true, 0, null, null, null, pool);
+    }
+    
+    public static Matrix2 mulTransB(Matrix2 a, Matrix2 b, Matrix2 dst) {
+        return Matrix2.gemm(1, a, false, b, true, 0, null, null, null, dst, ComputePool.current());
+    }
+    
+    public static Matrix2 gemm(float alpha, Matrix2 a, boolean transA, Matrix2 b, boolean transB,
+                               float beta, Matrix2 c, Matrix2 bias, ElementWiseOp op) {
+        return Matrix2.gemm(alpha, a, transA, b, transB, beta, c, bias, op, ComputePool.current());
+    }
+    
+    public static Matrix2 gemm(float alpha, Matrix2 a, boolean transA, Matrix2 b, boolean transB,
+                               float beta, Matrix2 c, Matrix2 bias, ElementWiseOp op, ComputePool pool) {
+        Matrix2 dst = allocate(transA ? a.cols : a.rows, transB ? b.rows : b.cols, Layout.ROW_MAJOR);
+        return Matrix2.gemm(alpha, a, transA, b, transB, beta, c, bias, op, dst, pool);
+    }
+    
+    public static Matrix2 gemm(float alpha, Matrix2 a, boolean transA, Matrix2 b, boolean transB,
+                               float beta, Matrix2 c, Matrix2 bias, ElementWiseOp op, Matrix2 dst) {
+        return Matrix2.gemm(alpha, a, transA, b, transB, beta, c, bias, op, dst, ComputePool.current());
+    }
+    
+    /**
+     * Fused multiplication: dst = op(alpha * A * B + beta * C + bias) in a single pass over the result.
+     * A and B are read as transposed in place if requested.
+     * @param c added matrix with the shape of the result, null for none. It can be dst itself (C = alpha * A * B + beta * C)
+     * @param bias column vector broadcast to all columns of the result, null for none
+     * @param op element-wise operation applied to the result, null for none
+     * @param dst destination of the result, it can't be A or B
+     */
+    public static Matrix2 gemm(float alpha, Matrix2 a, boolean transA, Matrix2 b, boolean transB,
+                               float beta, Matrix2 c, Matrix2 bias, ElementWiseOp op, Matrix2 dst, ComputePool pool) {
+        int m = transA ? a.cols : a.rows;
+        int k = transA ? a.rows : a.cols;
+        int n = transB ? b.rows : b.cols;
+        if(k != (transB ? b.cols : b.rows))
+            error("Invalid shapes, a" + (transA ? ".T" : "") + ": " + a + ", b" + (transB ? ".T" : "") + ": " + b);
+        if(c != null && (c.rows != m || c.cols != n))
+            error("Invalid shape for c: " + c);
+        if(bias != null && (bias.rows != m || bias.cols != 1))
+            error("Invalid shape for bias: " + bias);
+        checkDst(dst, m, n);
+        checkNoAlias(dst, a, b);
+        if(c != null)
+            checkOverlap(dst, c);
         
-        Matrix2 c = new Matrix2(a.rows, b.cols);
-        for (int row = 0; row < a.rows; row++) {
-            for (int col = 0; col < b.cols; col++) {
-                c.data[c.pos(row, col)] = rowColumnDot(a, row, b, col);
+        //Start from beta * C + bias, the product is accumulated on top
+        Matrix2 r = dst;
+        boolean addC = c != null && beta != 0;
+        if(r.colStride != 1) {
+            if(addC) {
+                Matrix2.unary(Kernels.Unary.MUL, beta, 0, c, r);
+                if(bias != null)
+                    Matrix2.add(r, Matrix2.broadcastCol(bias, n), r);
+            } else if(bias != null) {
+                Matrix2.broadcastCol(bias, r);
+            } else {
+                r.fill(0);
+            }
+        } else {
+            float[] line = addC ? LINE_BUFFERS.get().a(n) : null;
+            for (int row = 0; row < m; row++) {
+                int rOff = r.rowStart(row);
+                float bv = bias != null ? bias.data[bias.rowStart(row)] : 0;
+                if(addC) {
+                    Kernels.unary(Kernels.Unary.MUL, beta, 0, c.rowData(row, 0, n, line), c.rowOffset(row, 0), r.data, rOff, n);
+                    if(bias != null)
+                        Kernels.unary(Kernels.Unary.ADD, bv, 0, r.data, rOff, r.data, rOff, n);
+                } else {
+                    Arrays.fill(r.data, rOff, rOff + n, bv);
+                }
             }
         }
-        return c;
-    }
-    
-    private static float rowColumnDot(Matrix2 a, int row, Matrix2 b, int col) {
-        float dot = 0;
-        for (int i = 0; i < a.cols; i++) {
-            dot += a.get(row, i) * b.get(i, col);
+        
+        //Views are read in place through their strides
+        int aRs = transA ? a.colStride : a.rowStride;
+        int aCs = transA ? a.rowStride : a.colStride;
+        int bRs = transB ? b.colStride : b.rowStride;
+        int bCs = transB ? b.rowStride : b.colStride;
+        if(r.colStride == 1) {
+            Gemm.multiply(pool, m, n, k, alpha, a.data, a.offset, aRs, aCs, b.data, b.offset, bRs, bCs, r.data, r.offset, r.rowStride, op);
+        } else {
+            //Column-major result, computed as C.T = B.T * A.T
+            Gemm.multiply(pool, n, m, k, alpha, b.data, b.offset, bCs, bRs, a.data, a.offset, aCs, aRs, r.data, r.offset, r.colStride, op);
         }
-        return dot;
+        return r;
     }
     
     public static Matrix2 add(Matrix2 a, Matrix2 b) {
-        return Matrix2.apply(a, b, AddMatOp.INSTANCE);
+        return Matrix2.add(a, b, a.emptyCopy());
+    }
+    
+    public static Matrix2 add(Matrix2 a, Matrix2 b, Matrix2 dst) {
+        return binary(Kernels.Binary.ADD, 0, a, b, dst);
     }
     
     public static Matrix2 sub(Matrix2 a, Matrix2 b) {
-        return Matrix2.apply(a, b, SubMatOp.INSTANCE);
+        return Matrix2.sub(a, b, a.emptyCopy());
+    }
+    
+    public static Matrix2 sub(Matrix2 a, Matrix2 b, Matrix2 dst) {
+        return binary(Kernels.Binary.SUB, 0, a, b, dst);
     }
     
     public static boolean sameShape(Matrix2 a, Matrix2 b) {
@@ -557,40 +1462,278 @@ public class Matrix2 {
     }
     
     public static Matrix2 mulEW(Matrix2 a, Matrix2 b) {
-        return Matrix2.apply(a, b, MulMatEWOp.INSTANCE);
+        return Matrix2.mulEW(a, b, a.emptyCopy());
+    }
+    
+    public static Matrix2 mulEW(Matrix2 a, Matrix2 b, Matrix2 dst) {
+        return binary(Kernels.Binary.MUL, 0, a, b, dst);
     }
     
     public static Matrix2 divEW(Matrix2 a, Matrix2 b) {
-        return Matrix2.apply(a, b, DivMatEWOp.INSTANCE);
+        return Matrix2.divEW(a, b, a.emptyCopy());
+    }
+    
+    public static Matrix2 divEW(Matrix2 a, Matrix2 b, Matrix2 dst) {
+        return binary(Kernels.Binary.DIV, 0, a, b, dst);
     }
 
     public static Matrix2 greaterEW(Matrix2 a, Matrix2 b) {
-        return Matrix2.apply(a, b, GreaterMatOp.INSTANCE);
+        return Matrix2.greaterEW(a, b, a.emptyCopy());
+    }
+    
+    public static Matrix2 greaterEW(Matrix2 a, Matrix2 b, Matrix2 dst) {
+        return binary(Kernels.Binary.GREATER, 0, a, b, dst);
     }
 
     public static Matrix2 lowerEW(Matrix2 a, Matrix2 b) {
-        return Matrix2.apply(a, b, LowerMatOp.INSTANCE);
+        return Matrix2.lowerEW(a, b, a.emptyCopy());
+    }
+    
+    public static Matrix2 lowerEW(Matrix2 a, Matrix2 b, Matrix2 dst) {
+        return binary(Kernels.Binary.LOWER, 0, a, b, dst);
     }
 
     public static Matrix2 eqEW(Matrix2 a, Matrix2 b) {
-        return Matrix2.apply(a, b, EqualsMatOp.INSTANCE);
+        return Matrix2.eqEW(a, b, a.emptyCopy());
+    }
+    
+    public static Matrix2 eqEW(Matrix2 a, Matrix2 b, Matrix2 dst) {
+        return binary(Kernels.Binary.EQ, EPSILON, a, b, dst);
     }
 
     public static Matrix2 eqEW(Matrix2 a, Matrix2 b, float epsilon) {
-        return Matrix2.apply(a, b, new EqualsMatOp(epsilon));
+        return Matrix2.eqEW(a, b, epsilon, a.emptyCopy());
     }
 
-    public static Matrix2 transpose(Matrix2 m) {
-        Matrix2 t = new Matrix2(m.cols, m.rows);
-        for (int row = 0; row < m.rows; row++) {
-            for (int col = 0; col < m.cols; col++) {
-                t.set(col, row, m.get(row, col));
-            }
+    public static Matrix2 eqEW(Matrix2 a, Matrix2 b, float epsilon, Matrix2 dst) {
+        return binary(Kernels.Binary.EQ, epsilon, a, b, dst);
+    }
+
+    /**
+     * dst = a + s * b
+     */
+    public static Matrix2 addScaled(Matrix2 a, Matrix2 b, float s, Matrix2 dst) {
+        return binary(Kernels.Binary.ADD_SCALED, s, a, b, dst);
+    }
+    
+    /**
+     * Softmax of each column of Z written into A (which can be Z): exp(Z - max) / sum(exp(Z - max)).
+     * The max and sum of each column are kept in a per-thread line, so nothing is allocated when A has
+     * contiguous rows.
+     */
+    public static Matrix2 softmax(Matrix2 Z, Matrix2 A) {
+        checkDst(A, Z.rows, Z.cols);
+        checkOverlap(A, Z);
+        if(A.colStride != 1) {
+            Z.subInto(Z.maxPerColumn().broadcastRow(Z.rows), A).expInPlace();
+            return A.divEWInPlace(A.sumRows().broadcastRow(A.rows));
+        }
+        ComputePool pool = ComputePool.current();
+        if(pool.isParallel(Z.size())) {
+            pool.forEachRange(Z.cols, colGrain(Z), (start, end) -> softmaxRange(Z, A, start, end));
+        } else {
+            softmaxRange(Z, A, 0, Z.cols);
+        }
+        return A;
+    }
+    
+    private static void softmaxRange(Matrix2 Z, Matrix2 A, int colStart, int colEnd) {
+        int n = colEnd - colStart;
+        LineBuffers buffers = LINE_BUFFERS.get();
+        float[] line = buffers.a(n);
+        float[] acc = buffers.b(n);
+        
+        //A = exp(Z - max)
+        Arrays.fill(acc, 0, n, Float.NEGATIVE_INFINITY);
+        for (int row = 0; row < Z.rows; row++) {
+            Kernels.binary(Kernels.Binary.MAX, 0, acc, 0, Z.rowData(row, colStart, n, line), Z.rowOffset(row, colStart), acc, 0, n);
+        }
+        for (int row = 0; row < Z.rows; row++) {
+            int aOff = A.pos(row, colStart);
+            Kernels.binary(Kernels.Binary.SUB, 0, Z.rowData(row, colStart, n, line), Z.rowOffset(row, colStart), acc, 0, A.data, aOff, n);
+            Kernels.unary(Kernels.Unary.EXP, 0, 0, A.data, aOff, A.data, aOff, n);
+        }
+        
+        //A = A / sum(A)
+        Arrays.fill(acc, 0, n, 0);
+        for (int row = 0; row < A.rows; row++) {
+            Kernels.binary(Kernels.Binary.ADD, 0, acc, 0, A.data, A.pos(row, colStart), acc, 0, n);
+        }
+        for (int row = 0; row < A.rows; row++) {
+            int aOff = A.pos(row, colStart);
+            Kernels.binary(Kernels.Binary.DIV, 0, A.data, aOff, acc, 0, A.data, aOff, n);
+        }
+    }
+    
+    /**
+     * Relu gradient written into dZ, in a single pass: dZ = dA * (Z > 0)
+     */
+    public static Matrix2 reluGradient(Matrix2 dA, Matrix2 Z, Matrix2 dZ) {
+        return binary(Kernels.Binary.RELU_GRAD, 0, dA, Z, dZ);
+    }
+    
+    /**
+     * Sigmoid gradient written into dZ, in a single pass: dZ = dA * s * (1 - s), with s = sigmoid(Z)
+     */
+    public static Matrix2 sigmoidGradient(Matrix2 dA, Matrix2 Z, Matrix2 dZ) {
+        return binary(Kernels.Binary.SIGMOID_GRAD, 0, dA, Z, dZ);
+    }
+    
+    /**
+     * Softmax gradient from its output S written into dZ (which can be S), in a single pass: dZ = dA * S * (1 - S)
+     */
+    public static Matrix2 softmaxGradient(Matrix2 dA, Matrix2 S, Matrix2 dZ) {
+        return binary(Kernels.Binary.SOFTMAX_GRAD, 0, dA, S, dZ);
+    }
+    
+    /**
+     * Binary cross entropy terms written into dst, in a single pass:
+     * Y * log(AL) + (1-Y) * log(1-AL), with AL and 1-AL clamped to EPSILON
+     */
+    public static Matrix2 binaryCrossEntropy(Matrix2 Y, Matrix2 AL, Matrix2 dst) {
+        return binary(Kernels.Binary.BCE_COST, EPSILON, Y, AL, dst);
+    }
+    
+    /**
+     * Binary cross entropy gradient written into dAL, in a single pass: dAL = - ((Y / AL) - ((1-Y) / (1-AL)))
+     */
+    public static Matrix2 binaryCrossEntropyGradient(Matrix2 Y, Matrix2 AL, Matrix2 dAL) {
+        return binary(Kernels.Binary.BCE_GRAD, 0, Y, AL, dAL);
+    }
+    
+    /**
+     * Momentum update of param in place, in a single pass, subnormal results are flushed to zero:
+     * velocity = beta * velocity + (1 - beta) * grad, param = param - learningRate * velocity
+     */
+    public static Matrix2 momentumUpdate(Matrix2 param, Matrix2 grad, Matrix2 velocity, float learningRate, float beta) {
+        checkUpdate(param, grad, velocity, null);
+        ComputePool pool = ComputePool.current();
+        int n = param.size();
+        if(pool.isParallel(n)) {
+            pool.forEachRange(n, ComputePool.CHUNK_SIZE, (start, end) -> Kernels.momentum(param.data, param.offset + start,
+                    grad.data, grad.offset + start, velocity.data, velocity.offset + start, end - start, learningRate, beta));
+        } else {
+            Kernels.momentum(param.data, param.offset, grad.data, grad.offset, velocity.data, velocity.offset, n,
+                    learningRate, beta);
+        }
+        return param;
+    }
+    
+    /**
+     * RMSProp update of param in place, in a single pass, subnormal results are flushed to zero:
+     * square = beta * square + (1 - beta) * grad^2, param = param - learningRate * grad / (sqrt(square) + epsilon)
+     */
+    public static Matrix2 rmsPropUpdate(Matrix2 param, Matrix2 grad, Matrix2 square, float learningRate, float beta,
+                                        float epsilon) {
+        checkUpdate(param, grad, square, null);
+        ComputePool pool = ComputePool.current();
+        int n = param.size();
+        if(pool.isParallel(n)) {
+            pool.forEachRange(n, ComputePool.CHUNK_SIZE, (start, end) -> Kernels.rmsProp(param.data, param.offset + start,
+                    grad.data, grad.offset + start, square.data, square.offset + start, end - start, learningRate, beta, epsilon));
+        } else {
+            Kernels.rmsProp(param.data, param.offset, grad.data, grad.offset, square.data, square.offset, n,
+                    learningRate, beta, epsilon);
         }
-        return t;
+        return param;
+    }
+    
+    /**
+     * Adam update of param in place, in a single pass over param, grad and both moments:
+     * m = beta1 * m + (1 - beta1) * grad, v = beta2 * v + (1 - beta2) * grad^2,
+     * param = param - learningRate * mHat / (sqrt(vHat) + epsilon), with the moments bias corrected for the given
+     * step (from 1)
+     */
+    public static Matrix2 adamUpdate(Matrix2 param, Matrix2 grad, Matrix2 m, Matrix2 v, float learningRate,
+                                     float beta1, float beta2, float epsilon, int step) {
+        checkUpdate(param, grad, m, v);
+        if(step < 1)
+            error("Invalid step: " + step);
+        float c1 = 1 - (float) Math.pow(beta1, step);
+        float c2 = 1 - (float) Math.pow(beta2, step);
+        ComputePool pool = ComputePool.current();
+        int n = param.size();
+        if(pool.isParallel(n)) {
+            pool.forEachRange(n, ComputePool.CHUNK_SIZE, (start, end) -> Kernels.adam(param.data, param.offset + start,
+                    grad.data, grad.offset + start, m.data, m.offset + start, v.data, v.offset + start, end - start,
+                    learningRate, beta1, beta2, epsilon, c1, c2));
+        } else {
+            Kernels.adam(param.data, param.offset, grad.data, grad.offset, m.data, m.offset, v.data, v.offset, n,
+                    learningRate, beta1, beta2, epsilon, c1, c2);
+        }
+        return param;
+    }
+    
+    /**
+     * Fused optimizer updates run as a single loop, all matrices must be packed with the same shape and
+     * only param and the state ones are written
+     */
+    private static void checkUpdate(Matrix2 param, Matrix2 grad, Matrix2 s1, Matrix2 s2) {
+        if(!sameShape(param, grad) || !sameShape(param, s1) || (s2 != null && !sameShape(param, s2)))
+            error("Invalid shapes, param: " + param + ", grad: " + grad + ", state: " + s1 + (s2 != null ? ", " + s2 : ""));
+        if(!param.isPacked() || !grad.isPacked() || !s1.isPacked() || (s2 != null && !s2.isPacked()))
+            error("Optimizer updates need packed row-major matrices");
+        if(overlaps(param, grad) || overlaps(param, s1) || overlaps(grad, s1) ||
+                (s2 != null && (overlaps(param, s2) || overlaps(grad, s2) || overlaps(s1, s2))))
+            error("Optimizer update matrices can't share elements");
+    }
+    
+    public static Matrix2 copy(Matrix2 src, Matrix2 dst) {
+        return unary(Kernels.Unary.COPY, 0, 0, src, dst);
+    }
+
+    public static Matrix2 transpose(Matrix2 m) {
+        return Matrix2.transpose(m, allocate(m.cols, m.rows, Layout.ROW_MAJOR));
+    }
+
+    public static Matrix2 transpose(Matrix2 m, Matrix2 dst) {
+        checkNoAlias(dst, m, null);
+        return Matrix2.copy(Matrix2.transposeView(m), dst);
+    }
+    
+    /**
+     * Transposed view of m, without copying it. It shares data with m, so writing into the view writes into m:
+     * the view of a row-major matrix is a valid column-major destination (and the other way around).
+     */
+    public static Matrix2 transposeView(Matrix2 m) {
+        return new Matrix2(m.data, m.offset, m.cols, m.rows, m.colStride, m.rowStride);
+    }
+    
+    /**
+     * View of columns [colStart, colEnd) of m, without copying them. Writing into the view writes into m.
+     */
+    public static Matrix2 columnsView(Matrix2 m, int colStart, int colEnd) {
+        return Matrix2.blockView(m, 0, m.rows, colStart, colEnd);
+    }
+    
+    /**
+     * View of rows [rowStart, rowEnd) of m, without copying them. Writing into the view writes into m.
+     */
+    public static Matrix2 rowsView(Matrix2 m, int rowStart, int rowEnd) {
+        return Matrix2.blockView(m, rowStart, rowEnd, 0, m.cols);
+    }
+    
+    /**
+     * View of rows [rowStart, rowEnd) and columns [colStart, colEnd) of m, without copying them.
+     * Writing into the view writes into m.
+     */
+    public static Matrix2 blockView(Matrix2 m, int rowStart, int rowEnd, int colStart, int colEnd) {
+        if(rowStart < 0 || rowEnd > m.rows || rowStart >= rowEnd)
+            error("Invalid row range: [" + rowStart + ", " + rowEnd + ")");
+        if(colStart < 0 || colEnd > m.cols || colStart >= colEnd)
+            error("Invalid column range: [" + colStart + ", " + colEnd + ")");
+        return new Matrix2(m.data, m.pos(rowStart, colStart), rowEnd - rowStart, colEnd - colStart, m.rowStride, m.colStride);
     }
     
     public static Matrix2 appendColumns(Collection<Matrix2> list) {
+        return Matrix2.appendColumns(list, Layout.ROW_MAJOR);
+    }
+    
+    /**
+     * Concatenate the columns of all matrices into a new one stored with the given layout.
+     * With COLUMN_MAJOR each matrix is copied as a contiguous block.
+     */
+    public static Matrix2 appendColumns(Collection<Matrix2> list, Layout layout) {
         int rows = 0;
         int cols = 0;
         for (Matrix2 m : list) {
@@ -603,13 +1746,11 @@ public class Matrix2 {
             cols += m.cols;
         }
         
-        Matrix2 r = new Matrix2(rows, cols);
+        Matrix2 r = allocate(rows, cols, layout);
         int colIdx = 0;
         for (Matrix2 m : list) {
-            for (int col = 0; col < m.cols; col++) {
-                Matrix2.copyColumn(m, col, r, colIdx);
-                colIdx++;
-            }
+            Matrix2.copy(m, Matrix2.columnsView(r, colIdx, colIdx + m.cols));
+            colIdx += m.cols;
         }
         return r;
     }
@@ -617,13 +1758,43 @@ public class Matrix2 {
     public static Matrix2 getColumns(Matrix2 m, int[] indices) {
         if(indices == null || indices.length == 0)
             error("Invalid indices: " + Arrays.toString(indices));
+        return Matrix2.getColumns(m, indices, allocate(m.rows, indices.length, m.layout()));
+    }
+    
+    public static Matrix2 getColumns(Matrix2 m, int[] indices, Matrix2 dst) {
+        if(indices == null || indices.length == 0)
+            error("Invalid indices: " + Arrays.toString(indices));
+        return Matrix2.getColumns(m, indices, 0, indices.length, dst);
+    }
+    
+    /**
+     * Copy columns indices[start:end] of m into dst
+     */
+    public static Matrix2 getColumns(Matrix2 m, int[] indices, int start, int end, Matrix2 dst) {
+        if(start < 0 || end > indices.length || start >= end)
+            error("Invalid index range: [" + start + ", " + end + ")");
+        checkDst(dst, m.rows, end - start);
+        checkNoAlias(dst, m, null);
         
-        Matrix2 r = new Matrix2(m.rows, indices.length);
-        for (int i = 0; i < indices.length; i++) {
-            int col = indices[i];
-            if(col < 0 || col >= m.cols)
-                error("Invalid column index: " + col);
-            Matrix2.copyColumn(m, col, r, i);
+        for (int i = start; i < end; i++) {
+            if(indices[i] < 0 || indices[i] >= m.cols)
+                error("Invalid column index: " + indices[i]);
+        }
+        
+        Matrix2 r = dst;
+        if(m.rowStride == 1 && r.rowStride == 1) {
+            //Columns are contiguous in both matrices, copy them whole
+            for (int i = start; i < end; i++) {
+                System.arraycopy(m.data, m.pos(0, indices[i]), r.data, r.pos(0, i - start), m.rows);
+            }
+        } else {
+            //Gather row by row, so the source is read in memory order
+            for (int row = 0; row < m.rows; row++) {
+                int src = m.rowStart(row);
+                for (int i = start; i < end; i++) {
+                    r.data[r.pos(row, i - start)] = m.data[src + indices[i] * m.colStride];
+                }
+            }
         }
         return r;
     }
@@ -636,10 +1807,10 @@ public class Matrix2 {
         if(indices == null || indices.length == 0)
             error("Invalid indices: " + Arrays.toString(indices));
         
-        Matrix2 r = new Matrix2(indices.length, m.cols);
+        Matrix2 r = allocate(indices.length, m.cols, Layout.ROW_MAJOR);
         for (int i = 0; i < indices.length; i++) {
             int row = indices[i];
-            if(row < 0 || row >= m.cols)
+            if(row < 0 || row >= m.rows)
                 error("Invalid row index: " + row);
             Matrix2.copyRow(m, row, r, i);
         }
@@ -653,6 +1824,39 @@ public class Matrix2 {
     
     
     
+    /**
+     * Order of the elements of a matrix in its data array
+     */
+    public enum Layout {
+        /** One row after the other */
+        ROW_MAJOR,
+        /** One column after the other */
+        COLUMN_MAJOR
+    }
+    
+    /**
+     * Per-thread buffers where rows of views are gathered, grown on demand
+     */
+    private static class LineBuffers {
+        private float[] a = new float[0];
+        private float[] b = new float[0];
+        
+        float[] a(int n) {
+            if(a.length < n)
+                a = new float[n];
+            return a;
+        }
+        
+        float[] b(int n) {
+            if(b.length < n)
+                b = new float[n];
+            return b;
+        }
+    }
+    
+    
+    
+    
     /*-------------------------- Element-wise methods --------------------------*/
     
     
@@ -0,0 +1,119 @@
+package deepNN;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Scope for temporary matrices that are released all at once.
+ * While an arena is bound to a thread, the matrices created by Matrix2 operations in that thread are carved
+ * out of a few big float slabs owned by the arena instead of being new arrays. reset() releases all of them
+ * and the next ones reuse the same slabs, so a loop that resets its arena on each iteration stops producing
+ * garbage once the slabs are big enough.
+ *
+ * Matrices taken from an arena must not be used after it is reset or closed.
+ * An arena is not thread-safe, it must only be bound to one thread at a time.
+ */
+public final class MatrixArena implements AutoCloseable {
+
+    /** Default number of floats per slab */
+    public static final int DEFAULT_SLAB_SIZE = 1 << 20;
+
+    private static final ThreadLocal<MatrixArena> CURRENT = new ThreadLocal<>();
+
+    private final int slabSize;
+    private final List<float[]> slabs = new ArrayList<>();
+    private int slab;
+    private int used;
+    private boolean closed;
+
+    public MatrixArena() {
+        this(DEFAULT_SLAB_SIZE);
+    }
+
+    /**
+     * Creates an arena
+     * @param slabSize number of floats of each slab, matrices bigger than that get a slab of their own
+     */
+    public MatrixArena(int slabSize) {
+        if(slabSize < 1)
+            throw new IllegalArgumentException("Invalid slab size: " + slabSize);
+        this.slabSize = slabSize;
+    }
+
+    /**
+     * Arena bound to the current thread, null if none
+     */
+    public static MatrixArena current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Bind an arena to the current thread (null to unbind) and return the previous one, so it can be restored
+     * with another bind call. Unbinding keeps the thread entry, so binding in a loop doesn't allocate.
+     */
+    public static MatrixArena bind(MatrixArena arena) {
+        MatrixArena previous = CURRENT.get();
+        CURRENT.set(arena);
+        return previous;
+    }
+
+    /**
+     * New zero matrix taken from this arena
+     */
+    public Matrix2 allocate(int rows, int cols, Matrix2.Layout layout) {
+        if(closed)
+            throw new IllegalStateException("Arena is closed");
+        if(rows < 1 || cols < 1 || (long)rows * cols > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Invalid shape (" + rows + ", " + cols + ")");
+        int size = rows * cols;
+
+        //Move to the next slab with enough room, adding a new one if none
+        while (slab < slabs.size() && used + size > slabs.get(slab).length) {
+            slab++;
+            used = 0;
+        }
+        if(slab == slabs.size()) {
+            slabs.add(new float[Math.max(slabSize, size)]);
+        }
+
+        float[] data = slabs.get(slab);
+        Arrays.fill(data, used, used + size, 0);
+        Matrix2 m = Matrix2.wrap(data, used, rows, cols, layout);
+        used += size;
+        return m;
+    }
+
+    /**
+     * Release all matrices taken from this arena, keeping the slabs for the next ones
+     */
+    public void reset() {
+        slab = 0;
+        used = 0;
+    }
+
+    /**
+     * Number of floats reserved by this arena
+     */
+    public long capacity() {
+        long capacity = 0;
+        for (float[] s : slabs) {
+            capacity += s.length;
+        }
+        return capacity;
+    }
+
+    /**
+     * Release all matrices and slabs, the arena can't be used anymore
+     */
+    @Override
+    public void close() {
+        closed = true;
+        slabs.clear();
+        reset();
+        if(CURRENT.get() == this) {
+            CURRENT.remove();
+        }
+    }
+
+}
@@ -0,0 +1,179 @@
+package deepNN;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Front-end for online inference that groups concurrent single-sample requests into one batch.
+ * A one-column product wastes most of the cost of the matrix multiply, so requests are queued and a worker thread
+ * predicts them together once maxBatchSize of them are waiting or maxDelay has passed since the first one,
+ * whichever comes first. Each caller gets its prediction through a CompletableFuture.
+ *
+ * submit copies the sample, so the caller can reuse its input right away. The worker copies the samples into a
+ * reused column-major batch buffer and predicts them with a FrozenModel, so it only allocates the results. Latency of a request is at most maxDelay plus the time to predict a batch.
+ * Futures are completed by the worker thread, long dependent actions should use the async variants.
+ */
+public final class MicroBatcher implements AutoCloseable {
+
+    private final FrozenModel model;
+    private final int maxBatchSize;
+    private final long maxDelayNanos;
+    private final BlockingQueue<Request> queue;
+    private final Thread worker;
+    private final Request[] batch;
+    private final Matrix2[] inputColumns;
+    private final Matrix2[] outputColumns;
+    private final Matrix2[] batchX;
+    private final Matrix2[] batchY;
+    private volatile boolean closed;
+
+    /**
+     * Creates a batcher and starts its worker thread
+     * @param model model used for predictions
+     * @param maxBatchSize max number of samples predicted together
+     * @param maxDelay max time the first request of a batch waits for more requests
+     * @param unit unit of maxDelay
+     * @param queueCapacity max number of requests waiting, submit fails when full
+     */
+    public MicroBatcher(FrozenModel model, int maxBatchSize, long maxDelay, TimeUnit unit, int queueCapacity) {
+        if(maxBatchSize < 1 || maxDelay < 0 || queueCapacity < 1)
+            throw new IllegalArgumentException("Invalid batch size " + maxBatchSize + ", delay " + maxDelay +
+                    " or queue capacity " + queueCapacity);
+        this.model = model;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayNanos = unit.toNanos(maxDelay);
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.batch = new Request[maxBatchSize];
+
+        //Views over the batch buffers for each column and for each batch size
+        int inputs = model.getInputs();
+        int outputs = model.getOutputs();
+        float[] xData = new float[inputs * maxBatchSize];
+        float[] yData = new float[outputs * maxBatchSize];
+        this.inputColumns = new Matrix2[maxBatchSize];
+        this.outputColumns = new Matrix2[maxBatchSize];
+        this.batchX = new Matrix2[maxBatchSize + 1];
+        this.batchY = new Matrix2[maxBatchSize + 1];
+        for (int i = 0; i < maxBatchSize; i++) {
+            inputColumns[i] = Matrix2.wrap(xData, i * inputs, inputs, 1, Matrix2.Layout.COLUMN_MAJOR);
+            outputColumns[i] = Matrix2.wrap(yData, i * outputs, outputs, 1, Matrix2.Layout.COLUMN_MAJOR);
+            batchX[i + 1] = Matrix2.wrap(xData, 0, inputs, i + 1, Matrix2.Layout.COLUMN_MAJOR);
+            batchY[i + 1] = Matrix2.wrap(yData, 0, outputs, i + 1, Matrix2.Layout.COLUMN_MAJOR);
+        }
+
+        this.worker = new Thread(this::work, "micro-batcher");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * Creates a batcher whose queue holds up to 64 batches
+     */
+    public MicroBatcher(FrozenModel model, int maxBatchSize, long maxDelay, TimeUnit unit) {
+        this(model, maxBatchSize, maxDelay, unit, 64 * maxBatchSize);
+    }
+
+    /**
+     * Queue a sample for prediction
+     * @param x features of a single sample (inputs x 1), like SampleItem.toX(). It's copied before returning,
+     *          so it can be modified or reused while the prediction is pending.
+     * @return future completed with the prediction of the sample (outputs x 1), see FrozenModel.predict
+     */
+    public CompletableFuture<Matrix2> submit(Matrix2 x) {
+        if(x.rows() != model.getInputs() || x.cols() != 1)
+            throw new IllegalArgumentException("Invalid sample shape (" + x.rows() + ", " + x.cols() + "), expected (" +
+                    model.getInputs() + ", 1)");
+        Request request = new Request(Matrix2.copy(x, new Matrix2(x.rows(), 1)), System.nanoTime());
+        if(closed)
+            request.future.completeExceptionally(new IllegalStateException("Batcher closed"));
+        else if(!queue.offer(request))
+            request.future.completeExceptionally(new IllegalStateException("Too many pending requests"));
+        else if(closed && queue.remove(request))
+            request.future.completeExceptionally(new IllegalStateException("Batcher closed"));
+        return request.future;
+    }
+
+    /**
+     * Stop the worker, requests still queued fail
+     */
+    @Override
+    public void close() {
+        closed = true;
+        worker.interrupt();
+        try {
+            worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Request request;
+        while ((request = queue.poll()) != null) {
+            request.future.completeExceptionally(new IllegalStateException("Batcher closed"));
+        }
+    }
+
+    private void work() {
+        try {
+            while (!closed) {
+                //Wait for the first request, then for more until the batch is full or its deadline passes
+                batch[0] = queue.take();
+                int n = 1;
+                long deadline = batch[0].time + maxDelayNanos;
+                while (n < maxBatchSize) {
+                    Request request = queue.poll();
+                    if(request == null) {
+                        long wait = deadline - System.nanoTime();
+                        if(wait <= 0 || (request = queue.poll(wait, TimeUnit.NANOSECONDS)) == null)
+                            break;
+                    }
+                    batch[n++] = request;
+                }
+                predict(n);
+            }
+        } catch (InterruptedException e) {
+            //Closed, fail the requests of an unfinished batch
+            for (int i = 0; i < batch.length && batch[i] != null; i++) {
+                batch[i].future.completeExceptionally(new IllegalStateException("Batcher closed"));
+                batch[i] = null;
+            }
+        }
+    }
+
+    /**
+     * Predict the first n requests of the batch and complete their futures
+     */
+    private void predict(int n) {
+        try {
+            for (int i = 0; i < n; i++) {
+                Matrix2.copy(batch[i].x, inputColumns[i]);
+            }
+            model.predict(batchX[n], batchY[n]);
+            for (int i = 0; i < n; i++) {
+                batch[i].future.complete(Matrix2.copy(outputColumns[i], new Matrix2(model.getOutputs(), 1)));
+            }
+        } catch (Throwable e) {
+            for (int i = 0; i < n; i++) {
+                batch[i].future.completeExceptionally(e);
+            }
+        } finally {
+            for (int i = 0; i < n; i++) {
+                batch[i] = null;
+            }
+        }
+    }
+
+    /**
+     * Sample waiting for prediction
+     */
+    private static class Request {
+        public final Matrix2 x;
+        public final long time;
+        public final CompletableFuture<Matrix2> future = new CompletableFuture<>();
+        public Request(Matrix2 x, long time) {
+            this.x = x;
+            this.time = time;
+        }
+    }
+
+}
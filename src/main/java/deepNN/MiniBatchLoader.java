@@ -0,0 +1,181 @@
+package deepNN;
+
+import utils.MLUtils;
+
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Background producer of shuffled mini-batches for training.
+ * A producer thread shuffles the sample indices of each epoch and gathers the samples of each mini-batch into one
+ * of a small ring of reusable buffers, while training threads consume the filled ones and give them back.
+ * Memory stays at ringSize mini-batches no matter the size of the dataset, and preparing the next mini-batches
+ * overlaps with the training steps.
+ *
+ * The dataset is never copied or modified: each epoch only shuffles a permutation of the sample indices, reused
+ * across epochs, and samples are gathered from it just in time, so shuffling and gathering allocate nothing per epoch.
+ * Epoch e (from 0) is shuffled with seed randSeed + e + 1 and its mini-batches are produced in order,
+ * the last one can be shorter. Starting at a later epoch gives the same mini-batches as the rest of a full run.
+ */
+final class MiniBatchLoader implements AutoCloseable {
+
+    /**
+     * Copy columns indices[start:end] of a dataset into dst
+     */
+    interface Gather {
+        Matrix2 gather(int[] indices, int start, int end, Matrix2 dst);
+    }
+
+    private final Gather gatherX;
+    private final Gather gatherY;
+    private final int samples;
+    private final int batchSize;
+    private final int firstEpoch;
+    private final int epochs;
+    private final long randSeed;
+    private final BlockingQueue<Batch> free;
+    private final BlockingQueue<Batch> filled;
+    private final Thread producer;
+    private volatile Throwable error;
+
+    /**
+     * Creates a loader, start() begins producing
+     * @param gatherX gather of features
+     * @param xRows number of features
+     * @param gatherY gather of labels
+     * @param yRows number of label rows
+     * @param samples number of samples of the dataset
+     * @param batchSize samples per mini-batch
+     * @param firstEpoch index of the first epoch, when continuing a previous run
+     * @param epochs number of passes over the dataset
+     * @param randSeed random seed for shuffling
+     * @param ringSize number of reusable mini-batch buffers
+     */
+    MiniBatchLoader(Gather gatherX, int xRows, Gather gatherY, int yRows, int samples, int batchSize, int firstEpoch,
+                    int epochs, long randSeed, int ringSize) {
+        if(samples < 1 || batchSize < 1 || batchSize > samples)
+            throw new IllegalArgumentException("Invalid mini-batch size " + batchSize + " for " + samples + " samples");
+        if(ringSize < 1)
+            throw new IllegalArgumentException("Invalid ring size: " + ringSize);
+        this.gatherX = gatherX;
+        this.gatherY = gatherY;
+        this.samples = samples;
+        this.batchSize = batchSize;
+        this.firstEpoch = firstEpoch;
+        this.epochs = epochs;
+        this.randSeed = randSeed;
+        this.free = new ArrayBlockingQueue<>(ringSize);
+        this.filled = new ArrayBlockingQueue<>(ringSize + 1);
+        int lastSize = samples % batchSize;
+        for (int i = 0; i < ringSize; i++) {
+            free.add(new Batch(xRows, yRows, batchSize, lastSize));
+        }
+        this.producer = new Thread(this::produce, "mini-batch-loader");
+        this.producer.setDaemon(true);
+    }
+
+    void start() {
+        producer.start();
+    }
+
+    /**
+     * Number of mini-batches of each epoch
+     */
+    int batchesPerEpoch() {
+        return (samples + batchSize - 1) / batchSize;
+    }
+
+    /**
+     * Next filled mini-batch, waiting for it if not ready. It must be given back with release() after using it.
+     * If the producer failed, every call from then on throws, so no training thread waits forever.
+     */
+    Batch take() {
+        Batch batch;
+        try {
+            batch = filled.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for a mini-batch", e);
+        }
+        if(batch == Batch.FAILED) {
+            //Left for the other training threads
+            filled.add(Batch.FAILED);
+            throw new RuntimeException("Error preparing mini-batches", error);
+        }
+        return batch;
+    }
+
+    /**
+     * Give back a mini-batch taken with take(), so its buffers are filled again
+     */
+    void release(Batch batch) {
+        free.add(batch);
+    }
+
+    /**
+     * Stop the producer
+     */
+    @Override
+    public void close() {
+        producer.interrupt();
+        try {
+            producer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void produce() {
+        int[] indices = new int[samples];
+        Random rand = new Random();
+        try {
+            for (int epoch = firstEpoch; epoch < firstEpoch + epochs; epoch++) {
+                rand.setSeed(randSeed + epoch + 1);
+                MLUtils.shuffleArray(indices, rand);
+                for (int start = 0; start < samples; start += batchSize) {
+                    int end = Math.min(start + batchSize, samples);
+                    Batch batch = free.take();
+                    batch.select(end - start);
+                    gatherX.gather(indices, start, end, batch.X);
+                    gatherY.gather(indices, start, end, batch.Y);
+                    filled.add(batch);
+                }
+            }
+        } catch (InterruptedException e) {
+            //Closed
+        } catch (Throwable e) {
+            error = e;
+            filled.add(Batch.FAILED);
+        }
+    }
+
+    /**
+     * Buffers of a mini-batch, column-major so each sample is gathered with a single copy
+     */
+    static final class Batch {
+        private static final Batch FAILED = new Batch(1, 1, 1, 0);
+
+        private final Matrix2 fullX;
+        private final Matrix2 fullY;
+        private final Matrix2 lastX;
+        private final Matrix2 lastY;
+        /** Samples of the mini-batch, valid between take() and release() */
+        Matrix2 X;
+        Matrix2 Y;
+
+        private Batch(int xRows, int yRows, int batchSize, int lastSize) {
+            this.fullX = new Matrix2(xRows, batchSize, Matrix2.Layout.COLUMN_MAJOR);
+            this.fullY = new Matrix2(yRows, batchSize, Matrix2.Layout.COLUMN_MAJOR);
+            this.lastX = lastSize > 0 ? fullX.columnsView(0, lastSize) : null;
+            this.lastY = lastSize > 0 ? fullY.columnsView(0, lastSize) : null;
+        }
+
+        private void select(int size) {
+            boolean full = size == fullX.cols();
+            X = full ? fullX : lastX;
+            Y = full ? fullY : lastY;
+        }
+    }
+
+}
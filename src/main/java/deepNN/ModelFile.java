@@ -0,0 +1,396 @@
+package deepNN;
+
+import deepNN.activation.ActivationFunction;
+import deepNN.loss.LossFunction;
+import deepNN.optimizer.AdamOptimizer;
+import deepNN.optimizer.MomentumOptimizer;
+import deepNN.optimizer.Optimizer;
+import deepNN.optimizer.RmsPropOptimizer;
+import deepNN.optimizer.SgdOptimizer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Binary file of a trained network, read through a memory-mapped view of the file.
+ *
+ * All values are little-endian. A 128 bytes header:
+ * <pre>
+ *  0 magic "DNNM"        4 version           8 number of layers L
+ * 12 hidden activation  16 output activation 20 loss function
+ * 24 random seed (long) 32 mini-batch size  36 epochs
+ * 40 learning rate      44 lambda           48 trained epochs
+ * 52 optimizer         56 optimizer step    60 optimizer states
+ * 64 optimizer settings (3 floats: beta or beta1, beta2 or epsilon, epsilon)
+ * 76 reserved
+ * </pre>
+ * followed by the L + 1 layer dimensions (ints) and, for each layer, W (units x inputs, row-major) and b (units)
+ * as float blocks. Then each optimizer state, laid out like the parameters. Dimensions and each block start at
+ * a multiple of 64 bytes, so offsets follow from the dimensions. Version 1 files have a 64 bytes header, no
+ * optimizer and were trained with SGD.
+ *
+ * Loading maps the file and reads the header, then each block is moved into its matrix with a single bulk copy,
+ * nothing is parsed or converted. The file is shared through the page cache by every process that maps it.
+ */
+final class ModelFile {
+
+    static final int MAGIC = 0x4D4E4E44;
+    static final int VERSION = 3;
+    static final int ALIGNMENT = 64;
+    private static final int HEADER_BYTES = 128;
+    private static final int V1_HEADER_BYTES = 64;
+    private static final int SETTINGS = 3;
+
+    private static final ActivationFunction[] ACTIVATIONS = {
+        DeepNeuralNetwork.RELU, DeepNeuralNetwork.SIGMOID, DeepNeuralNetwork.SOFTMAX
+    };
+    private static final LossFunction[] LOSSES = {
+        DeepNeuralNetwork.BINARY_CROSS_ENTROPY, DeepNeuralNetwork.MULTI_CLASS_CROSS_ENTROPY
+    };
+    //Optimizers by class, any other one is saved as 0
+    private static final Class<?>[] OPTIMIZERS = {
+        SgdOptimizer.class, MomentumOptimizer.class, RmsPropOptimizer.class, AdamOptimizer.class
+    };
+
+    final int[] layerDims;
+    final ActivationFunction hiddenActivation;
+    final ActivationFunction outputActivation;
+    final LossFunction lossFunction;
+    final long randSeed;
+    final int miniBatchSize;
+    final int iterations;
+    final float learningRate;
+    final float lambda;
+    final int epochs;
+    final int optimizerId;
+    final int optimizerStep;
+    final int stateCount;
+    private final float[] optimizerSettings;
+    private final int headerBytes;
+    private final FloatBuffer blocks;
+
+    private ModelFile(ByteBuffer buffer, Path path) {
+        if(buffer.limit() < V1_HEADER_BYTES || buffer.getInt(0) != MAGIC)
+            throw new IllegalArgumentException("Not a model file: " + path);
+        //Version 2 had no optimizer settings, its state can't be checked
+        int version = buffer.getInt(4);
+        if(version != 1 && version != VERSION)
+            throw new IllegalArgumentException("Unsupported model file version " + version + ": " + path);
+        this.headerBytes = version == 1 ? V1_HEADER_BYTES : HEADER_BYTES;
+        int L = buffer.getInt(8);
+        if(L < 1 || headerBytes + (L + 1) * Integer.BYTES > buffer.limit())
+            throw new IllegalArgumentException("Invalid number of layers " + L + ": " + path);
+        this.hiddenActivation = ACTIVATIONS[checkId(buffer.getInt(12), ACTIVATIONS.length, path)];
+        this.outputActivation = ACTIVATIONS[checkId(buffer.getInt(16), ACTIVATIONS.length, path)];
+        this.lossFunction = LOSSES[checkId(buffer.getInt(20), LOSSES.length, path)];
+        this.randSeed = buffer.getLong(24);
+        this.miniBatchSize = buffer.getInt(32);
+        this.iterations = buffer.getInt(36);
+        this.learningRate = buffer.getFloat(40);
+        this.lambda = buffer.getFloat(44);
+        this.epochs = buffer.getInt(48);
+        this.optimizerId = version > 1 ? buffer.getInt(52) : optimizerId(new SgdOptimizer());
+        this.optimizerStep = version > 1 ? buffer.getInt(56) : 0;
+        this.stateCount = version > 1 ? buffer.getInt(60) : 0;
+        this.optimizerSettings = new float[SETTINGS];
+        for (int i = 0; i < SETTINGS && version > 1; i++) {
+            optimizerSettings[i] = buffer.getFloat(64 + i * Float.BYTES);
+        }
+        if(optimizerId < 0 || optimizerId > OPTIMIZERS.length || optimizerStep < 0 || stateCount < 0)
+            throw new IllegalArgumentException("Invalid optimizer " + optimizerId + ": " + path);
+        this.layerDims = new int[L + 1];
+        for (int l = 0; l <= L; l++) {
+            layerDims[l] = buffer.getInt(headerBytes + l * Integer.BYTES);
+            if(layerDims[l] < 1)
+                throw new IllegalArgumentException("Invalid layer dimension " + layerDims[l] + ": " + path);
+        }
+        if(buffer.limit() != size(headerBytes, layerDims, stateCount))
+            throw new IllegalArgumentException("Invalid model file size " + buffer.limit() + ", expected " +
+                    size(headerBytes, layerDims, stateCount) + ": " + path);
+        this.blocks = buffer.asFloatBuffer();
+    }
+
+    /**
+     * Map a model file and read its header, parameters are read with readParameters
+     */
+    static ModelFile open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new ModelFile(buffer.order(ByteOrder.LITTLE_ENDIAN), path);
+        }
+    }
+
+    /**
+     * Read a whole model file into the heap with plain channel reads, for a file that is replaced while its
+     * values are in use, like a checkpoint being resumed. Nothing is mapped, so the file can be replaced at once.
+     */
+    static ModelFile read(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if(size > Integer.MAX_VALUE)
+                throw new IllegalArgumentException("Model file too big: " + size + " bytes: " + path);
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining()) {
+                if(channel.read(buffer, buffer.position()) < 0)
+                    throw new IOException("Unexpected end of file: " + path);
+            }
+            buffer.flip();
+            return new ModelFile(buffer.order(ByteOrder.LITTLE_ENDIAN), path);
+        }
+    }
+
+    /**
+     * Copy the parameters of layer l into W and b
+     */
+    void readParameters(int l, Matrix2 W, Matrix2 b) {
+        if(W.rows() != layerDims[l + 1] || W.cols() != layerDims[l] || b.rows() != layerDims[l + 1] || b.cols() != 1)
+            throw new IllegalArgumentException("Invalid parameters shape for layer " + l);
+        FloatBuffer src = blocks.duplicate();
+        W.setData(src, floatIndex(weightsOffset(headerBytes, layerDims, l)));
+        b.setData(src, floatIndex(biasOffset(headerBytes, layerDims, l)));
+    }
+
+    /**
+     * New optimizer of the type and settings the file was written with, null for an optimizer of another class
+     */
+    Optimizer readOptimizer() {
+        float[] s = optimizerSettings;
+        switch (optimizerId) {
+            case 1: return new SgdOptimizer();
+            case 2: return new MomentumOptimizer(s[0]);
+            case 3: return new RmsPropOptimizer(s[0], s[1]);
+            case 4: return new AdamOptimizer(s[0], s[1], s[2]);
+            default: return null;
+        }
+    }
+
+    /**
+     * Copy the optimizer state of the file into the state of the layers
+     * @return number of optimizer updates of the file
+     * @throws IllegalArgumentException if the file was written with another optimizer or other settings
+     */
+    int readOptimizerState(Optimizer optimizer, Layer[] layers) {
+        if(optimizerId != optimizerId(optimizer) || stateCount != optimizer.stateSize() ||
+                !Arrays.equals(optimizerSettings, settings(optimizer)))
+            throw new IllegalArgumentException("The model file was written with optimizer " + optimizerId +
+                    " and settings " + Arrays.toString(optimizerSettings) + ", not " + optimizer.getClass().getName() +
+                    " with " + Arrays.toString(settings(optimizer)));
+        FloatBuffer src = blocks.duplicate();
+        for (int l = 0; l < layers.length; l++) {
+            for (int i = 0; i < stateCount; i++) {
+                layers[l].weightsState()[i].setData(src, floatIndex(stateOffset(headerBytes, layerDims, i,
+                        weightsOffset(headerBytes, layerDims, l))));
+                layers[l].biasState()[i].setData(src, floatIndex(stateOffset(headerBytes, layerDims, i,
+                        biasOffset(headerBytes, layerDims, l))));
+            }
+        }
+        return optimizerStep;
+    }
+
+    /**
+     * Prediction only layers with the parameters of the file
+     */
+    Layer[] readLayers() {
+        int L = layerDims.length - 1;
+        Layer[] layers = new Layer[L];
+        for (int l = 0; l < L; l++) {
+            Matrix2 W = new Matrix2(layerDims[l + 1], layerDims[l]);
+            Matrix2 b = new Matrix2(layerDims[l + 1], 1);
+            readParameters(l, W, b);
+            layers[l] = new Layer(layerDims[l], layerDims[l + 1], l < L - 1 ? hiddenActivation : outputActivation, W, b);
+        }
+        return layers;
+    }
+
+    /**
+     * Write a model file. It's written next to path with plain channel writes and then moved over it, so readers
+     * never see a partial file. The temporary file is deleted if anything fails.
+     * The optimizer state of the layers is written after the parameters.
+     */
+    static void write(Path path, Layer[] layers, LossFunction lossFunction, long randSeed, int miniBatchSize,
+                      int iterations, float learningRate, float lambda, int epochs, Optimizer optimizer,
+                      int optimizerStep) throws IOException {
+        int L = layers.length;
+        int[] layerDims = new int[L + 1];
+        layerDims[0] = layers[0].getInputs();
+        for (int l = 0; l < L; l++) {
+            layerDims[l + 1] = layers[l].getUnits();
+        }
+        int stateCount = optimizer.stateSize();
+        long size = size(HEADER_BYTES, layerDims, stateCount);
+        if(size > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Model too big: " + size + " bytes");
+
+        Path absolute = path.toAbsolutePath();
+        Path tmp = absolute.resolveSibling(absolute.getFileName() + ".tmp");
+        boolean moved = false;
+        try {
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE)) {
+                //Header and dimensions
+                ByteBuffer header = ByteBuffer.allocate((int) weightsOffset(HEADER_BYTES, layerDims, 0))
+                        .order(ByteOrder.LITTLE_ENDIAN);
+                header.putInt(0, MAGIC);
+                header.putInt(4, VERSION);
+                header.putInt(8, L);
+                header.putInt(12, id(L > 1 ? layers[0].getActivation() : layers[L - 1].getActivation(), ACTIVATIONS));
+                header.putInt(16, id(layers[L - 1].getActivation(), ACTIVATIONS));
+                header.putInt(20, id(lossFunction, LOSSES));
+                header.putLong(24, randSeed);
+                header.putInt(32, miniBatchSize);
+                header.putInt(36, iterations);
+                header.putFloat(40, learningRate);
+                header.putFloat(44, lambda);
+                header.putInt(48, epochs);
+                header.putInt(52, optimizerId(optimizer));
+                header.putInt(56, optimizerStep);
+                header.putInt(60, stateCount);
+                float[] settings = settings(optimizer);
+                for (int i = 0; i < SETTINGS; i++) {
+                    header.putFloat(64 + i * Float.BYTES, settings[i]);
+                }
+                for (int l = 0; l <= L; l++) {
+                    header.putInt(HEADER_BYTES + l * Integer.BYTES, layerDims[l]);
+                }
+                writeFully(channel, header, 0);
+
+                //Parameter blocks, through a buffer sized for the biggest one
+                ByteBuffer block = ByteBuffer.allocate((int) align((long) maxSize(layers) * Float.BYTES))
+                        .order(ByteOrder.LITTLE_ENDIAN);
+                for (int l = 0; l < L; l++) {
+                    long weights = weightsOffset(HEADER_BYTES, layerDims, l);
+                    long bias = biasOffset(HEADER_BYTES, layerDims, l);
+                    writeBlock(channel, block, layers[l].getWeights(), weights);
+                    writeBlock(channel, block, layers[l].getBias(), bias);
+                    for (int i = 0; i < stateCount; i++) {
+                        writeBlock(channel, block, layers[l].weightsState()[i], stateOffset(HEADER_BYTES, layerDims, i, weights));
+                        writeBlock(channel, block, layers[l].biasState()[i], stateOffset(HEADER_BYTES, layerDims, i, bias));
+                    }
+                }
+                channel.force(true);
+            }
+            Files.move(tmp, absolute, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            moved = true;
+        } finally {
+            if(!moved) {
+                Files.deleteIfExists(tmp);
+            }
+        }
+    }
+
+    /**
+     * Write the data of m at position, padded with zeros to the alignment
+     */
+    private static void writeBlock(FileChannel channel, ByteBuffer block, Matrix2 m, long position) throws IOException {
+        int size = m.rows() * m.cols();
+        int bytes = (int) align((long) size * Float.BYTES);
+        block.clear();
+        m.getData(block.asFloatBuffer(), 0);
+        for (int i = size * Float.BYTES; i < bytes; i++) {
+            block.put(i, (byte) 0);
+        }
+        block.limit(bytes);
+        writeFully(channel, block, position);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static int maxSize(Layer[] layers) {
+        int max = 0;
+        for (Layer layer : layers) {
+            max = Math.max(max, layer.getUnits() * layer.getInputs());
+        }
+        return max;
+    }
+
+    private static long align(long bytes) {
+        return (bytes + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+
+    private static long weightsOffset(int headerBytes, int[] layerDims, int layer) {
+        long offset = align(headerBytes + (long) layerDims.length * Integer.BYTES);
+        for (int l = 0; l < layer; l++) {
+            offset += align((long) layerDims[l + 1] * layerDims[l] * Float.BYTES) + align((long) layerDims[l + 1] * Float.BYTES);
+        }
+        return offset;
+    }
+
+    private static long biasOffset(int headerBytes, int[] layerDims, int layer) {
+        return weightsOffset(headerBytes, layerDims, layer) + align((long) layerDims[layer + 1] * layerDims[layer] * Float.BYTES);
+    }
+
+    private static int floatIndex(long byteOffset) {
+        return (int) (byteOffset / Float.BYTES);
+    }
+
+    private static long size(int headerBytes, int[] layerDims) {
+        return weightsOffset(headerBytes, layerDims, layerDims.length - 1);
+    }
+
+    private static long size(int headerBytes, int[] layerDims, int stateCount) {
+        return stateOffset(headerBytes, layerDims, stateCount, weightsOffset(headerBytes, layerDims, 0));
+    }
+
+    /**
+     * Offset in the given optimizer state of the parameter block at offset
+     */
+    private static long stateOffset(int headerBytes, int[] layerDims, int state, long offset) {
+        long parameters = weightsOffset(headerBytes, layerDims, 0);
+        long section = size(headerBytes, layerDims) - parameters;
+        return size(headerBytes, layerDims) + state * section + offset - parameters;
+    }
+
+    private static <T> int id(T function, T[] known) {
+        for (int i = 0; i < known.length; i++) {
+            if(known[i] == function)
+                return i + 1;
+        }
+        throw new IllegalArgumentException("Only the functions of DeepNeuralNetwork can be saved: " + function.getClass().getName());
+    }
+
+    private static int optimizerId(Optimizer optimizer) {
+        for (int i = 0; i < OPTIMIZERS.length; i++) {
+            if(OPTIMIZERS[i] == optimizer.getClass())
+                return i + 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Settings of the optimizers that can be restored, zeros for the others
+     */
+    private static float[] settings(Optimizer optimizer) {
+        float[] settings = new float[SETTINGS];
+        if(optimizer instanceof MomentumOptimizer) {
+            settings[0] = ((MomentumOptimizer) optimizer).getBeta();
+        } else if(optimizer instanceof RmsPropOptimizer) {
+            settings[0] = ((RmsPropOptimizer) optimizer).getBeta();
+            settings[1] = ((RmsPropOptimizer) optimizer).getEpsilon();
+        } else if(optimizer instanceof AdamOptimizer) {
+            settings[0] = ((AdamOptimizer) optimizer).getBeta1();
+            settings[1] = ((AdamOptimizer) optimizer).getBeta2();
+            settings[2] = ((AdamOptimizer) optimizer).getEpsilon();
+        }
+        return settings;
+    }
+
+    private static int checkId(int id, int count, Path path) {
+        if(id < 1 || id > count)
+            throw new IllegalArgumentException("Unknown function id " + id + ": " + path);
+        return id - 1;
+    }
+
+}
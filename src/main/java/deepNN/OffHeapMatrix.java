@@ -0,0 +1,146 @@
+package deepNN;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * A nxm float matrix stored outside the Java heap, one column after the other.
+ * Meant for big datasets where each column is a sample: they don't grow the heap or the GC pauses, and
+ * columns are copied into heap matrices (like mini-batches) only when they are needed.
+ * Columns are split in blocks of up to 1 GB, each one in its own direct buffer, so the size of the matrix is not
+ * limited by the size of a buffer. Memory is released when the matrix is garbage collected.
+ */
+public final class OffHeapMatrix {
+
+    /** Max bytes of each block of columns */
+    static final int MAX_BLOCK_BYTES = 1 << 30;
+
+    private final FloatBuffer[] blocks;
+    //Views of the blocks for each thread that gathers columns, created once per thread
+    private final ThreadLocal<FloatBuffer[]> threadBlocks = ThreadLocal.withInitial(this::duplicateBlocks);
+    private final int rows;
+    private final int cols;
+    private final int blockCols;
+
+    public OffHeapMatrix(int rows, int cols) {
+        this(rows, cols, MAX_BLOCK_BYTES);
+    }
+
+    /**
+     * Creates a matrix stored in blocks of up to blockBytes bytes (at least one column each)
+     */
+    OffHeapMatrix(int rows, int cols, int blockBytes) {
+        if(rows < 1 || cols < 1)
+            throw new IllegalArgumentException("Invalid shape (" + rows + ", " + cols + ")");
+        if((long)rows * Float.BYTES > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Column too big: " + rows + " rows");
+        this.rows = rows;
+        this.cols = cols;
+        this.blockCols = Math.max(1, Math.min(cols, blockBytes / (rows * Float.BYTES)));
+        this.blocks = new FloatBuffer[(cols + blockCols - 1) / blockCols];
+        for (int i = 0; i < blocks.length; i++) {
+            int n = Math.min(blockCols, cols - i * blockCols);
+            blocks[i] = ByteBuffer.allocateDirect(n * rows * Float.BYTES).order(ByteOrder.nativeOrder()).asFloatBuffer();
+        }
+    }
+
+    /**
+     * Off-heap copy of m
+     */
+    public static OffHeapMatrix copyOf(Matrix2 m) {
+        OffHeapMatrix r = new OffHeapMatrix(m.rows(), m.cols());
+        FloatBuffer[] dst = r.duplicateBlocks();
+        for (int col = 0; col < m.cols(); col++) {
+            m.getColumn(col, dst[col / r.blockCols], r.position(col));
+        }
+        return r;
+    }
+
+    public int rows() {
+        return rows;
+    }
+
+    public int cols() {
+        return cols;
+    }
+
+    public float get(int row, int col) {
+        checkColumn(col);
+        if(row < 0 || row >= rows)
+            throw new IllegalArgumentException("Invalid row: " + row);
+        return blocks[col / blockCols].get(position(col) + row);
+    }
+
+    /**
+     * Overwrite a column with the first rows values
+     */
+    public void setColumn(int col, float[] values) {
+        checkColumn(col);
+        if(values.length < rows)
+            throw new IllegalArgumentException("Invalid column length: " + values.length);
+        FloatBuffer dst = blocks[col / blockCols].duplicate();
+        dst.position(position(col));
+        dst.put(values, 0, rows);
+    }
+
+    /**
+     * Copy columns indices[start:end] into a new heap matrix, stored column-major
+     */
+    public Matrix2 getColumns(int[] indices, int start, int end) {
+        return getColumns(indices, start, end, new Matrix2(rows, end - start, Matrix2.Layout.COLUMN_MAJOR));
+    }
+
+    /**
+     * Copy columns indices[start:end] into dst. With a column-major dst each column is a single bulk copy.
+     * Columns are read through views of the blocks kept per thread, so nothing is allocated.
+     */
+    public Matrix2 getColumns(int[] indices, int start, int end, Matrix2 dst) {
+        if(start < 0 || end > indices.length || start >= end)
+            throw new IllegalArgumentException("Invalid index range: [" + start + ", " + end + ")");
+        Matrix2.checkDst(dst, rows, end - start);
+        FloatBuffer[] src = threadBlocks.get();
+        for (int i = start; i < end; i++) {
+            int col = indices[i];
+            checkColumn(col);
+            dst.setColumn(i - start, src[col / blockCols], position(col));
+        }
+        return dst;
+    }
+
+    /**
+     * Heap copy of the whole matrix, stored column-major
+     */
+    public Matrix2 toMatrix() {
+        Matrix2 r = new Matrix2(rows, cols, Matrix2.Layout.COLUMN_MAJOR);
+        FloatBuffer[] src = duplicateBlocks();
+        for (int col = 0; col < cols; col++) {
+            r.setColumn(col, src[col / blockCols], position(col));
+        }
+        return r;
+    }
+
+    /**
+     * Views of the blocks with their own positions, so threads can copy columns concurrently
+     */
+    private FloatBuffer[] duplicateBlocks() {
+        FloatBuffer[] r = new FloatBuffer[blocks.length];
+        for (int i = 0; i < blocks.length; i++) {
+            r[i] = blocks[i].duplicate();
+        }
+        return r;
+    }
+
+    /**
+     * Position of the first element of a column in its block
+     */
+    private int position(int col) {
+        return (col % blockCols) * rows;
+    }
+
+    private void checkColumn(int col) {
+        if(col < 0 || col >= cols)
+            throw new IllegalArgumentException("Invalid column: " + col);
+    }
+
+}
@@ -0,0 +1,63 @@
+package deepNN;
+
+/**
+ * The k biggest outputs of each sample and their classes (rows of the output layer), in descending order.
+ * Values are stored sample by sample in flat arrays: those of sample i are at [i * k, (i + 1) * k).
+ *
+ * @see DeepNeuralNetwork#predictTopK(Matrix2, int)
+ */
+public final class TopK {
+
+    private final int k;
+    private final int[] indices;
+    private final float[] scores;
+
+    TopK(int k, int[] indices, float[] scores) {
+        this.k = k;
+        this.indices = indices;
+        this.scores = scores;
+    }
+
+    public int getK() {
+        return k;
+    }
+
+    public int getSamples() {
+        return indices.length / k;
+    }
+
+    /**
+     * Class with the given rank (0 is the best) for a sample
+     */
+    public int index(int sample, int rank) {
+        return indices[pos(sample, rank)];
+    }
+
+    /**
+     * Output of the class with the given rank (0 is the best) for a sample
+     */
+    public float score(int sample, int rank) {
+        return scores[pos(sample, rank)];
+    }
+
+    /**
+     * Classes of all samples, sample by sample. This is the array of this result, not a copy.
+     */
+    public int[] getIndices() {
+        return indices;
+    }
+
+    /**
+     * Outputs of all samples, sample by sample. This is the array of this result, not a copy.
+     */
+    public float[] getScores() {
+        return scores;
+    }
+
+    private int pos(int sample, int rank) {
+        if(rank < 0 || rank >= k)
+            throw new IllegalArgumentException("Invalid rank: " + rank + ", k is " + k);
+        return sample * k + rank;
+    }
+
+}
@@ -12,4 +12,26 @@ public interface ActivationFunction {
     Matrix2 forward(Matrix2 Z);
 
     Matrix2 backward(Matrix2 dA, Matrix2 Z);
+
+    /**
+     * forward written into A, which has the shape of Z
+     */
+    default Matrix2 forward(Matrix2 Z, Matrix2 A) {
+        return Matrix2.copy(forward(Z), A);
+    }
+
+    /**
+     * backward written into dZ, which has the shape of Z and can't be dA
+     */
+    default Matrix2 backward(Matrix2 dA, Matrix2 Z, Matrix2 dZ) {
+        return Matrix2.copy(backward(dA, Z), dZ);
+    }
+
+    /**
+     * Element-wise form of forward, so it can be fused with other operations.
+     * Null if each output depends on more than one element (like softmax)
+     */
+    default Matrix2.ElementWiseOp elementWiseOp() {
+        return null;
+    }
 }
@@ -22,4 +22,20 @@ public class ReluFunction implements ActivationFunction {
         //dz = 0 if z <= 0 else keep value of da
         return dA.mulEW(mask);
     }
+
+    @Override
+    public Matrix2 forward(Matrix2 Z, Matrix2 A) {
+        return Z.reluInto(A);
+    }
+
+    @Override
+    public Matrix2 backward(Matrix2 dA, Matrix2 Z, Matrix2 dZ) {
+        //dz = 0 if z <= 0 else keep value of da, in a single pass
+        return Matrix2.reluGradient(dA, Z, dZ);
+    }
+
+    @Override
+    public Matrix2.ElementWiseOp elementWiseOp() {
+        return Matrix2.ReluOp.INSTANCE;
+    }
 }
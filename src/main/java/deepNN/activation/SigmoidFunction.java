@@ -24,4 +24,20 @@ public class SigmoidFunction implements ActivationFunction {
 
         return dZ;
     }
+
+    @Override
+    public Matrix2 forward(Matrix2 Z, Matrix2 A) {
+        return Z.sigmoidInto(A);
+    }
+
+    @Override
+    public Matrix2 backward(Matrix2 dA, Matrix2 Z, Matrix2 dZ) {
+        //dZ = dA * s * (1-s), in a single pass
+        return Matrix2.sigmoidGradient(dA, Z, dZ);
+    }
+
+    @Override
+    public Matrix2.ElementWiseOp elementWiseOp() {
+        return Matrix2.SigmoidOp.INSTANCE;
+    }
 }
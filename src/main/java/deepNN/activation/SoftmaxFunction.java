@@ -17,6 +17,12 @@ public class SoftmaxFunction implements ActivationFunction {
         return expZ.divEW(expZ.sumRows().broadcastRow(expZ.rows()));
     }
 
+    @Override
+    public Matrix2 forward(Matrix2 Z, Matrix2 A) {
+        //Same as forward, the max and sum of each column are kept in a per-thread line
+        return Matrix2.softmax(Z, A);
+    }
+
     @Override
     public Matrix2 backward(Matrix2 dA, Matrix2 Z) {
         //S = softmax(Z)
@@ -27,4 +33,13 @@ public class SoftmaxFunction implements ActivationFunction {
 
         return dZ;
     }
+
+    @Override
+    public Matrix2 backward(Matrix2 dA, Matrix2 Z, Matrix2 dZ) {
+        //S = softmax(Z), computed in dZ
+        forward(Z, dZ);
+
+        //dZ = dA * S * (1 - S)
+        return Matrix2.softmaxGradient(dA, dZ, dZ);
+    }
 }
@@ -29,4 +29,17 @@ public class BinaryCrossEntropyLoss implements LossFunction {
 
         return dAL;
     }
+
+    @Override
+    public float computeCost(Matrix2 Y, Matrix2 AL, Matrix2 scratch) {
+        int m = Y.cols();
+
+        //Cross-entropy cost = -1/m * sum(Y * log(AL) + (1-Y) * log(1-AL)), each term computed in a single pass
+        return Matrix2.binaryCrossEntropy(Y, AL, scratch).sum() * (-1f/m);
+    }
+
+    @Override
+    public Matrix2 computeCostGradient(Matrix2 Y, Matrix2 AL, Matrix2 dAL) {
+        return Matrix2.binaryCrossEntropyGradient(Y, AL, dAL);
+    }
 }
@@ -13,4 +13,18 @@ public interface LossFunction {
 
     Matrix2 computeCostGradient(Matrix2 Y, Matrix2 AL);
 
+    /**
+     * computeCost using scratch, a matrix with the shape of AL that can be overwritten, for intermediate values
+     */
+    default float computeCost(Matrix2 Y, Matrix2 AL, Matrix2 scratch) {
+        return computeCost(Y, AL);
+    }
+
+    /**
+     * computeCostGradient written into dAL
+     */
+    default Matrix2 computeCostGradient(Matrix2 Y, Matrix2 AL, Matrix2 dAL) {
+        return Matrix2.copy(computeCostGradient(Y, AL), dAL);
+    }
+
 }
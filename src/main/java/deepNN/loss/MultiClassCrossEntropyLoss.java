@@ -24,4 +24,18 @@ public class MultiClassCrossEntropyLoss implements LossFunction {
         //Grad = AL - Y
         return AL.sub(Y);
     }
+
+    @Override
+    public float computeCost(Matrix2 Y, Matrix2 AL, Matrix2 scratch) {
+        int m = Y.cols();
+
+        //Cost = -1/m * sum(Y * log(AL))
+        return -1f/m * AL.clampToZeroInto(scratch).logInPlace().mulEWInPlace(Y).sum();
+    }
+
+    @Override
+    public Matrix2 computeCostGradient(Matrix2 Y, Matrix2 AL, Matrix2 dAL) {
+        //Grad = AL - Y
+        return AL.subInto(Y, dAL);
+    }
 }
@@ -0,0 +1,53 @@
+package deepNN.optimizer;
+
+import deepNN.Matrix2;
+
+/**
+ * Adam, momentum and RMSProp combined with bias correction of both averages:
+ * m = beta1 * m + (1 - beta1) * grad, v = beta2 * v + (1 - beta2) * grad^2,
+ * param = param - learningRate * mHat / (sqrt(vHat) + epsilon)
+ */
+public class AdamOptimizer implements Optimizer {
+
+    private final float beta1;
+    private final float beta2;
+    private final float epsilon;
+
+    /**
+     * Adam with beta1 0.9, beta2 0.999 and epsilon 1e-8
+     */
+    public AdamOptimizer() {
+        this(0.9f, 0.999f, 1e-8f);
+    }
+
+    public AdamOptimizer(float beta1, float beta2, float epsilon) {
+        if(beta1 < 0 || beta1 >= 1 || beta2 < 0 || beta2 >= 1 || epsilon <= 0)
+            throw new IllegalArgumentException("Invalid beta1: " + beta1 + ", beta2: " + beta2 + " or epsilon: " + epsilon);
+        this.beta1 = beta1;
+        this.beta2 = beta2;
+        this.epsilon = epsilon;
+    }
+
+    public float getBeta1() {
+        return beta1;
+    }
+
+    public float getBeta2() {
+        return beta2;
+    }
+
+    public float getEpsilon() {
+        return epsilon;
+    }
+
+    @Override
+    public int stateSize() {
+        return 2;
+    }
+
+    @Override
+    public void update(Matrix2 param, Matrix2 grad, Matrix2[] state, float learningRate, int step) {
+        Matrix2.adamUpdate(param, grad, state[0], state[1], learningRate, beta1, beta2, epsilon, step);
+    }
+
+}
@@ -0,0 +1,40 @@
+package deepNN.optimizer;
+
+import deepNN.Matrix2;
+
+/**
+ * Gradient descent with momentum, an exponentially weighted average of the gradients:
+ * v = beta * v + (1 - beta) * grad, param = param - learningRate * v
+ */
+public class MomentumOptimizer implements Optimizer {
+
+    private final float beta;
+
+    /**
+     * Momentum with beta 0.9
+     */
+    public MomentumOptimizer() {
+        this(0.9f);
+    }
+
+    public MomentumOptimizer(float beta) {
+        if(beta < 0 || beta >= 1)
+            throw new IllegalArgumentException("Invalid beta: " + beta);
+        this.beta = beta;
+    }
+
+    public float getBeta() {
+        return beta;
+    }
+
+    @Override
+    public int stateSize() {
+        return 1;
+    }
+
+    @Override
+    public void update(Matrix2 param, Matrix2 grad, Matrix2[] state, float learningRate, int step) {
+        Matrix2.momentumUpdate(param, grad, state[0], learningRate, beta);
+    }
+
+}
@@ -0,0 +1,23 @@
+package deepNN.optimizer;
+
+import deepNN.Matrix2;
+
+/**
+ * Interface for a gradient descent optimizer.
+ * Each parameter matrix has stateSize() state matrices with its shape (like moments), allocated once by the network
+ * and kept between steps, so updates run in place without allocating.
+ */
+public interface Optimizer {
+
+    /**
+     * Number of state matrices per parameter matrix
+     */
+    int stateSize();
+
+    /**
+     * Update param in place using grad and its state
+     * @param step number of this update since training started, from 1
+     */
+    void update(Matrix2 param, Matrix2 grad, Matrix2[] state, float learningRate, int step);
+
+}
@@ -0,0 +1,46 @@
+package deepNN.optimizer;
+
+import deepNN.Matrix2;
+
+/**
+ * RMSProp, each parameter is scaled by an exponentially weighted average of its squared gradients:
+ * s = beta * s + (1 - beta) * grad^2, param = param - learningRate * grad / (sqrt(s) + epsilon)
+ */
+public class RmsPropOptimizer implements Optimizer {
+
+    private final float beta;
+    private final float epsilon;
+
+    /**
+     * RMSProp with beta 0.9 and epsilon 1e-8
+     */
+    public RmsPropOptimizer() {
+        this(0.9f, 1e-8f);
+    }
+
+    public RmsPropOptimizer(float beta, float epsilon) {
+        if(beta < 0 || beta >= 1 || epsilon <= 0)
+            throw new IllegalArgumentException("Invalid beta: " + beta + " or epsilon: " + epsilon);
+        this.beta = beta;
+        this.epsilon = epsilon;
+    }
+
+    public float getBeta() {
+        return beta;
+    }
+
+    public float getEpsilon() {
+        return epsilon;
+    }
+
+    @Override
+    public int stateSize() {
+        return 1;
+    }
+
+    @Override
+    public void update(Matrix2 param, Matrix2 grad, Matrix2[] state, float learningRate, int step) {
+        Matrix2.rmsPropUpdate(param, grad, state[0], learningRate, beta, epsilon);
+    }
+
+}
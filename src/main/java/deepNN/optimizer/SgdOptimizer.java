@@ -0,0 +1,20 @@
+package deepNN.optimizer;
+
+import deepNN.Matrix2;
+
+/**
+ * Plain gradient descent: param = param - learningRate * grad
+ */
+public class SgdOptimizer implements Optimizer {
+
+    @Override
+    public int stateSize() {
+        return 0;
+    }
+
+    @Override
+    public void update(Matrix2 param, Matrix2 grad, Matrix2[] state, float learningRate, int step) {
+        param.addScaledInPlace(grad, -learningRate);
+    }
+
+}
@@ -0,0 +1,108 @@
+package examples;
+
+import deepNN.DeepNeuralNetwork;
+import deepNN.FrozenModel;
+import deepNN.Matrix2;
+import deepNN.MicroBatcher;
+import utils.SampleItem;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Online inference of single samples sent by concurrent clients, predicted one by one or grouped by a MicroBatcher.
+ * Prints throughput and latency percentiles for different batch sizes and deadlines.
+ */
+public class ExampleMicroBatchingInference {
+
+    private static final int CLIENTS = 32;
+    private static final int REQUESTS_PER_CLIENT = 2000;
+
+    public static void main(String[] args) throws Exception {
+        new ExampleMicroBatchingInference().run();
+    }
+
+    private void run() throws Exception {
+        long randSeed = 12345;
+
+        //Timing doesn't depend on the weights, an initialized network is enough
+        DeepNeuralNetwork classifier = new DeepNeuralNetwork(
+                randSeed,
+                new int[]{64, 256, 256, 10}, //network layers
+                128, //mini-batch size
+                1, //epochs
+                0.1f, //learning rate
+                0f, //L2 lambda regularization
+                DeepNeuralNetwork.RELU, //Hidden layers activation function
+                DeepNeuralNetwork.SOFTMAX, //Output layer activation function
+                DeepNeuralNetwork.MULTI_CLASS_CROSS_ENTROPY //Loss function
+        );
+        FrozenModel model = classifier.freeze();
+
+        //Random samples, as a server would build them from incoming requests
+        Random rand = new Random(randSeed);
+        List<Matrix2> samples = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            float[] features = new float[64];
+            for (int j = 0; j < features.length; j++) {
+                features[j] = rand.nextFloat();
+            }
+            samples.add(new SampleItem(features, 0).toX());
+        }
+
+        System.out.println(CLIENTS + " clients, " + REQUESTS_PER_CLIENT + " requests each");
+        System.out.println(String.format("%-24s %12s %10s %10s", "mode", "requests/s", "p50 (us)", "p99 (us)"));
+        report("direct", measure(samples, x -> model.predict(x)));
+        int[] batchSizes = {8, 32, 128};
+        long[] delaysMicros = {100, 1000};
+        for (int batchSize : batchSizes) {
+            for (long delay : delaysMicros) {
+                try (MicroBatcher batcher = new MicroBatcher(model, batchSize, delay, TimeUnit.MICROSECONDS)) {
+                    report("batch " + batchSize + ", " + delay + " us", measure(samples, x -> batcher.submit(x).join()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Latency of each request of all clients, in nanoseconds, followed by the total time
+     */
+    private long[] measure(List<Matrix2> samples, Client client) throws InterruptedException {
+        long[] latencies = new long[CLIENTS * REQUESTS_PER_CLIENT + 1];
+        Thread[] threads = new Thread[CLIENTS];
+        long start = System.nanoTime();
+        for (int t = 0; t < CLIENTS; t++) {
+            int first = t * REQUESTS_PER_CLIENT;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < REQUESTS_PER_CLIENT; i++) {
+                    long begin = System.nanoTime();
+                    client.predict(samples.get((first + i) % samples.size()));
+                    latencies[first + i] = System.nanoTime() - begin;
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        latencies[latencies.length - 1] = System.nanoTime() - start;
+        return latencies;
+    }
+
+    private void report(String mode, long[] measures) {
+        int n = measures.length - 1;
+        long total = measures[n];
+        long[] latencies = Arrays.copyOf(measures, n);
+        Arrays.sort(latencies);
+        System.out.println(String.format("%-24s %12.0f %10d %10d", mode, n / (total / 1e9),
+                latencies[n / 2] / 1000, latencies[(int) (n * 0.99)] / 1000));
+    }
+
+    private interface Client {
+        void predict(Matrix2 x);
+    }
+
+}
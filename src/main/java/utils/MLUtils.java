@@ -14,17 +14,25 @@ public abstract class MLUtils {
 
     public static int[] shuffleArray(int n, long randSeed) {
         int[] a = new int[n];
+        shuffleArray(a, new Random(randSeed));
+        return a;
+    }
+
+    /**
+     * Fill a with a random permutation of [0, a.length), without allocating.
+     * Same result as shuffleArray(a.length, seed) with a rand just seeded with seed.
+     */
+    public static void shuffleArray(int[] a, Random rand) {
+        int n = a.length;
         for (int i = 0; i < n; i++) {
             a[i] = i;
         }
-        Random rand = new Random(randSeed);
         for (int i = 0; i < n; i++) {
             int j = i + rand.nextInt(n - i);
             int tmp = a[i];
             a[i] = a[j];
             a[j] = tmp;
         }
-        return a;
     }
 
     public static void splitDataSet(List<SampleItem> items, float splitPercentage, long randSeed, List<SampleItem> out1, List<SampleItem> out2) {
@@ -1,6 +1,7 @@
 package utils;
 
 import deepNN.Matrix2;
+import deepNN.OffHeapMatrix;
 
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -46,7 +47,7 @@ public class SampleItem {
         for (SampleItem item : items) {
             list.add(item.toX());
         }
-        return Matrix2.appendColumns(list);
+        return Matrix2.appendColumns(list, Matrix2.Layout.COLUMN_MAJOR);
     }
 
     public static Matrix2 toY(List<SampleItem> items) {
@@ -54,7 +55,7 @@ public class SampleItem {
         for (SampleItem item : items) {
             list.add(item.toY());
         }
-        return Matrix2.appendColumns(list);
+        return Matrix2.appendColumns(list, Matrix2.Layout.COLUMN_MAJOR);
     }
 
     public static Matrix2 toYoneHot(List<SampleItem> items, int labels) {
@@ -62,7 +63,40 @@ public class SampleItem {
         for (SampleItem item : items) {
             list.add(item.toYoneHot(labels));
         }
-        return Matrix2.appendColumns(list);
+        return Matrix2.appendColumns(list, Matrix2.Layout.COLUMN_MAJOR);
+    }
+
+    /**
+     * Features of all items as columns of a matrix stored off-heap
+     */
+    public static OffHeapMatrix toOffHeapX(List<SampleItem> items) {
+        OffHeapMatrix X = new OffHeapMatrix(items.get(0).features.length, items.size());
+        for (int i = 0; i < items.size(); i++) {
+            X.setColumn(i, items.get(i).features);
+        }
+        return X;
+    }
+
+    /**
+     * Labels of all items as a row matrix stored off-heap
+     */
+    public static OffHeapMatrix toOffHeapY(List<SampleItem> items) {
+        OffHeapMatrix Y = new OffHeapMatrix(1, items.size());
+        for (int i = 0; i < items.size(); i++) {
+            Y.setColumn(i, new float[]{items.get(i).label});
+        }
+        return Y;
+    }
+
+    /**
+     * One-hot labels of all items as columns of a matrix stored off-heap
+     */
+    public static OffHeapMatrix toOffHeapYoneHot(List<SampleItem> items, int labels) {
+        OffHeapMatrix Y = new OffHeapMatrix(labels, items.size());
+        for (int i = 0; i < items.size(); i++) {
+            Y.setColumn(i, MLUtils.oneHotVec(items.get(i).label, labels));
+        }
+        return Y;
     }
 
     public static Map<Integer, List<SampleItem>> toMap(List<SampleItem> items) {
@@ -0,0 +1,619 @@
+package deepNN;
+
+import deepNN.activation.ReluFunction;
+import deepNN.optimizer.AdamOptimizer;
+import deepNN.optimizer.MomentumOptimizer;
+import deepNN.optimizer.Optimizer;
+import deepNN.optimizer.RmsPropOptimizer;
+import org.junit.Test;
+import utils.MLUtils;
+
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for DeepNeuralNetwork class
+ */
+public class TestDeepNeuralNetwork {
+
+    @Test
+    public void testLayers() {
+        DeepNeuralNetwork nn = new DeepNeuralNetwork(1, new int[]{4, 8, 3}, 16, 1, 0.1f, 0.01f,
+                DeepNeuralNetwork.RELU, DeepNeuralNetwork.SOFTMAX, DeepNeuralNetwork.MULTI_CLASS_CROSS_ENTROPY);
+        assertEquals(2, nn.getLayerCount());
+        assertEquals(4, nn.getLayer(0).getInputs());
+        assertEquals(8, nn.getLayer(0).getUnits());
+        assertSame(DeepNeuralNetwork.RELU, nn.getLayer(0).getActivation());
+        assertSame(DeepNeuralNetwork.SOFTMAX, nn.getLayer(1).getActivation());
+        assertEquals(3, nn.getLayer(1).getWeights().rows());
+        assertEquals(8, nn.getLayer(1).getWeights().cols());
+        assertEquals(3, nn.getLayer(1).getBias().rows());
+        assertEquals(1, nn.getLayer(1).getBias().cols());
+
+        //Parameters are the ones used by predict
+        Matrix2 X = Matrix2.random(4, 5, 2);
+        Matrix2.copy(new Matrix2(new float[][]{{1000}, {0}, {0}}), nn.getLayer(1).getBias());
+        Matrix2 prediction = nn.predict(X);
+        for (int col = 0; col < X.cols(); col++) {
+            assertEquals(1, prediction.get(0, col), 0);
+        }
+    }
+
+    @Test
+    public void testDataParallelTraining() {
+        //50 samples with mini-batches of 16: shards of 5/5/6 and a last mini-batch of 2 split in 1/1
+        Matrix2 X = Matrix2.random(4, 50, 2);
+        Matrix2 Y = X.sumRows().greater(0);
+        DeepNeuralNetwork serial = newBinaryClassifier(16, 20);
+        serial.train(X, Y, false);
+        DeepNeuralNetwork parallel = newBinaryClassifier(16, 20);
+        parallel.setComputePool(new ComputePool(new ForkJoinPool(3)));
+        parallel.setTrainingThreads(3);
+        parallel.train(X, Y, false);
+
+        for (int l = 0; l < serial.getLayerCount(); l++) {
+            assertMatrixEquals(serial.getLayer(l).getWeights(), parallel.getLayer(l).getWeights(), 1e-5f);
+            assertMatrixEquals(serial.getLayer(l).getBias(), parallel.getLayer(l).getBias(), 1e-5f);
+        }
+    }
+
+    @Test
+    public void testAsynchronousTraining() {
+        Matrix2 X = Matrix2.random(4, 400, 2);
+        Matrix2 Y = X.sumRows().greater(0);
+        DeepNeuralNetwork nn = newBinaryClassifier(16, 300);
+        nn.setComputePool(new ComputePool(new ForkJoinPool(3)));
+        nn.setTrainingThreads(3);
+        nn.setTrainingMode(DeepNeuralNetwork.TrainingMode.ASYNCHRONOUS);
+        nn.train(X, Y, false);
+
+        //Updates are not reproducible, but the model must learn the same as with synchronous training
+        Matrix2 prediction = nn.predict(X);
+        float accuracy = Matrix2.eqEW(prediction, Y).sum() / Y.cols();
+        assertEquals(1, accuracy, 0.05f);
+    }
+
+    @Test(timeout = 60000)
+    public void testAsynchronousTrainingLoaderError() {
+        //Y has more samples than X, the loader fails gathering X and every training thread must see it
+        Matrix2 X = Matrix2.random(4, 300, 2);
+        Matrix2 Y = new Matrix2(1, 400);
+        ForkJoinPool threads = new ForkJoinPool(3);
+        DeepNeuralNetwork nn = newBinaryClassifier(16, 5);
+        nn.setComputePool(new ComputePool(threads));
+        nn.setTrainingThreads(3);
+        nn.setTrainingMode(DeepNeuralNetwork.TrainingMode.ASYNCHRONOUS);
+        try {
+            nn.train(X, Y, false);
+            fail("Trained with a failed loader");
+        } catch (RuntimeException e) {
+            //Expected
+        }
+        assertEquals(true, threads.awaitQuiescence(10, TimeUnit.SECONDS));
+        threads.shutdown();
+    }
+
+    @Test
+    public void testOffHeapGatherAllocatesNothing() {
+        OffHeapMatrix X = OffHeapMatrix.copyOf(Matrix2.random(4, 100, 2));
+        int[] indices = MLUtils.shuffleArray(100, 3);
+        Matrix2 dst = new Matrix2(4, 16, Matrix2.Layout.COLUMN_MAJOR);
+        for (int i = 0; i < 20000; i++) {
+            X.getColumns(indices, i % 84, i % 84 + 16, dst);
+        }
+        long overhead = allocatedBytes();
+        overhead = allocatedBytes() - overhead;
+        long before = allocatedBytes();
+        for (int i = 0; i < 1000; i++) {
+            X.getColumns(indices, i % 84, i % 84 + 16, dst);
+        }
+        assertEquals(0, allocatedBytes() - before - overhead);
+    }
+
+    @Test
+    public void testMiniBatchLoader() {
+        //10 samples whose single feature is their index, mini-batches of 4/4/2
+        Matrix2 X = new Matrix2(new float[][]{{0, 1, 2, 3, 4, 5, 6, 7, 8, 9}});
+        MiniBatchLoader.Gather gather = (indices, start, end, dst) -> Matrix2.getColumns(X, indices, start, end, dst);
+        try (MiniBatchLoader loader = new MiniBatchLoader(gather, 1, gather, 1, 10, 4, 0, 2, 7, 2)) {
+            loader.start();
+            assertEquals(3, loader.batchesPerEpoch());
+            for (int epoch = 0; epoch < 2; epoch++) {
+                int[] expected = MLUtils.shuffleArray(10, 7 + epoch + 1);
+                int i = 0;
+                for (int b = 0; b < loader.batchesPerEpoch(); b++) {
+                    MiniBatchLoader.Batch batch = loader.take();
+                    assertEquals(b < 2 ? 4 : 2, batch.X.cols());
+                    for (int col = 0; col < batch.X.cols(); col++) {
+                        assertEquals(expected[i++], batch.X.get(0, col), 0);
+                    }
+                    loader.release(batch);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testChunkedInference() {
+        //3 classes, one per feature with the biggest value
+        Matrix2 X = Matrix2.random(3, 50, 2);
+        Matrix2 Y = Matrix2.eqEW(X, X.maxPerColumn().broadcastRow(3));
+        DeepNeuralNetwork nn = new DeepNeuralNetwork(1, new int[]{3, 8, 3}, 16, 20, 0.1f, 0.01f,
+                DeepNeuralNetwork.RELU, DeepNeuralNetwork.SOFTMAX, DeepNeuralNetwork.MULTI_CLASS_CROSS_ENTROPY);
+        nn.train(X, Y, false);
+        Layer[] layers = {nn.getLayer(0), nn.getLayer(1)};
+
+        //Chunks of 7 columns, the last one of 1, give the same result as a single chunk
+        InferenceEngine whole = new InferenceEngine(layers, 50);
+        InferenceEngine chunked = new InferenceEngine(layers, 7);
+        assertMatrixEquals(whole.forward(X, new Matrix2(3, 50)), chunked.forward(X, new Matrix2(3, 50)), 0);
+        assertMatrixEquals(whole.predict(X, new Matrix2(3, 50)), chunked.predict(X, new Matrix2(3, 50)), 0);
+
+        //Same labels as the output of the last layer
+        Matrix2 AL = whole.forward(X, new Matrix2(3, 50));
+        Matrix2 prediction = new Matrix2(3, 50);
+        assertSame(prediction, nn.predict(X, prediction));
+        assertMatrixEquals(Matrix2.eqEW(AL, AL.maxPerColumn().broadcastRow(3)), prediction, 0);
+    }
+
+    @Test
+    public void testPredictClasses() {
+        Matrix2 X = Matrix2.random(3, 50, 2);
+        Matrix2 Y = Matrix2.eqEW(X, X.maxPerColumn().broadcastRow(3));
+        DeepNeuralNetwork nn = new DeepNeuralNetwork(1, new int[]{3, 8, 3}, 16, 20, 0.1f, 0.01f,
+                DeepNeuralNetwork.RELU, DeepNeuralNetwork.SOFTMAX, DeepNeuralNetwork.MULTI_CLASS_CROSS_ENTROPY);
+        nn.train(X, Y, false);
+
+        //Same classes as the one-hot labels
+        Matrix2 prediction = nn.predict(X);
+        int[] classes = nn.predictClasses(X);
+        assertEquals(50, classes.length);
+        for (int col = 0; col < X.cols(); col++) {
+            assertEquals(1, prediction.get(classes[col], col), 0);
+        }
+
+        //Top 2 outputs in descending order, the first one is the predicted class
+        Matrix2 AL = new InferenceEngine(new Layer[]{nn.getLayer(0), nn.getLayer(1)}, 50).forward(X, new Matrix2(3, 50));
+        TopK top = nn.predictTopK(X, 2);
+        assertEquals(50, top.getSamples());
+        for (int col = 0; col < X.cols(); col++) {
+            assertEquals(classes[col], top.index(col, 0));
+            assertEquals(AL.get(top.index(col, 0), col), top.score(col, 0), 0);
+            assertEquals(AL.get(top.index(col, 1), col), top.score(col, 1), 0);
+            assertEquals(true, top.score(col, 0) >= top.score(col, 1));
+            assertEquals(true, top.index(col, 0) != top.index(col, 1));
+        }
+
+        //Binary classifier: output > 0.5
+        Matrix2 binaryY = X.sumRows().greater(1.5f);
+        DeepNeuralNetwork binary = new DeepNeuralNetwork(1, new int[]{3, 8, 1}, 16, 20, 0.1f, 0.01f,
+                DeepNeuralNetwork.RELU, DeepNeuralNetwork.SIGMOID, DeepNeuralNetwork.BINARY_CROSS_ENTROPY);
+        binary.train(X, binaryY, false);
+        Matrix2 binaryPrediction = binary.predict(X);
+        int[] binaryClasses = binary.predictClasses(X);
+        for (int col = 0; col < X.cols(); col++) {
+            assertEquals(binaryPrediction.get(0, col), binaryClasses[col], 0);
+        }
+    }
+
+    @Test
+    public void testFrozenModel() throws Exception {
+        Matrix2 X = Matrix2.random(4, 40, 2);
+        Matrix2 Y = X.sumRows().greater(0);
+        DeepNeuralNetwork nn = newBinaryClassifier(16, 20);
+        nn.train(X, Y, false);
+        FrozenModel model = nn.freeze();
+        Matrix2 expected = nn.predict(X);
+
+        //Training again doesn't change the frozen parameters
+        nn.train(X.mul(-1), Y, false);
+        assertMatrixEquals(expected, model.predict(X), 0);
+
+        //Concurrent single-sample predictions give the same result as a whole prediction
+        Thread[] threads = new Thread[8];
+        float[][] results = new float[threads.length][X.cols()];
+        for (int t = 0; t < threads.length; t++) {
+            float[] result = results[t];
+            threads[t] = new Thread(() -> {
+                Matrix2 dst = new Matrix2(1, 1);
+                for (int i = 0; i < 50; i++) {
+                    for (int col = 0; col < X.cols(); col++) {
+                        result[col] = model.predict(Matrix2.getColumn(X, col), dst).get(0, 0);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (float[] result : results) {
+            for (int col = 0; col < X.cols(); col++) {
+                assertEquals(expected.get(0, col), result[col], 0);
+            }
+        }
+
+        //Predictions into a destination don't allocate once warmed up, also with a softmax output
+        assertPredictAllocatesNothing(model, Matrix2.getColumn(X, 0), new Matrix2(1, 1));
+        Matrix2 X3 = Matrix2.random(3, 50, 2);
+        DeepNeuralNetwork softmax = new DeepNeuralNetwork(1, new int[]{3, 8, 3}, 16, 5, 0.1f, 0.01f,
+                DeepNeuralNetwork.RELU, DeepNeuralNetwork.SOFTMAX, DeepNeuralNetwork.MULTI_CLASS_CROSS_ENTROPY);
+        softmax.train(X3, Matrix2.eqEW(X3, X3.maxPerColumn().broadcastRow(3)), false);
+        assertPredictAllocatesNothing(softmax.freeze(), X3.columnsView(0, 4), new Matrix2(3, 4));
+    }
+
+    private static void assertPredictAllocatesNothing(FrozenModel model, Matrix2 X, Matrix2 dst) {
+        for (int i = 0; i < 20000; i++) {
+            model.predict(X, dst);
+        }
+        long overhead = allocatedBytes();
+        overhead = allocatedBytes() - overhead;
+        long before = allocatedBytes();
+        for (int i = 0; i < 1000; i++) {
+            model.predict(X, dst);
+        }
+        assertEquals(0, allocatedBytes() - before - overhead);
+    }
+
+    @Test
+    public void testFrozenModelContention() throws Exception {
+        Matrix2 X = Matrix2.random(4, 40, 2);
+        Matrix2 Y = X.sumRows().greater(0);
+        DeepNeuralNetwork nn = newBinaryClassifier(16, 20);
+        nn.train(X, Y, false);
+        Layer[] layers = new Layer[nn.getLayerCount()];
+        for (int l = 0; l < layers.length; l++) {
+            layers[l] = nn.getLayer(l).freeze();
+        }
+        Matrix2 expected = nn.predict(X);
+        Matrix2[] samples = new Matrix2[X.cols()];
+        for (int col = 0; col < X.cols(); col++) {
+            samples[col] = Matrix2.getColumn(X, col);
+        }
+        
+        //More threads than slots: extra engines are kept once created, so warmed up calls don't allocate
+        FrozenModel model = new FrozenModel(layers, InferenceEngine.DEFAULT_CHUNK_SIZE, 2);
+        Thread[] threads = new Thread[16];
+
+        //Warm up one engine per thread, as many calls in flight at once would, so no measured call creates one
+        InferenceEngine[] warm = new InferenceEngine[threads.length];
+        for (int t = 0; t < threads.length; t++) {
+            warm[t] = model.acquire();
+            warm[t].predict(samples[0], new Matrix2(1, 1));
+        }
+        for (InferenceEngine engine : warm) {
+            model.release(engine);
+        }
+        long[] allocated = new long[threads.length];
+        boolean[] correct = new boolean[threads.length];
+        CyclicBarrier barrier = new CyclicBarrier(threads.length);
+        for (int t = 0; t < threads.length; t++) {
+            int thread = t;
+            threads[t] = new Thread(() -> {
+                Matrix2 dst = new Matrix2(1, 1);
+                try {
+                    for (int i = 0; i < 20000; i++) {
+                        model.predict(samples[i % samples.length], dst);
+                    }
+                    barrier.await();
+                    //The first reading of a thread allocates, warm it up before measuring the overhead
+                    allocatedBytes();
+                    long overhead = allocatedBytes();
+                    overhead = allocatedBytes() - overhead;
+                    long before = allocatedBytes();
+                    boolean ok = true;
+                    for (int i = 0; i < 4000; i++) {
+                        int col = i % samples.length;
+                        ok &= model.predict(samples[col], dst).get(0, 0) == expected.get(0, col);
+                    }
+                    allocated[thread] = allocatedBytes() - before - overhead;
+                    correct[thread] = ok;
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            threads[t].start();
+        }
+        long total = 0;
+        for (int t = 0; t < threads.length; t++) {
+            threads[t].join();
+            assertEquals(true, correct[t]);
+            total += allocated[t];
+        }
+        assertEquals(0, total);
+    }
+
+    @Test
+    public void testMicroBatcher() throws Exception {
+        Matrix2 X = Matrix2.random(4, 40, 2);
+        Matrix2 Y = X.sumRows().greater(0);
+        DeepNeuralNetwork nn = newBinaryClassifier(16, 20);
+        nn.train(X, Y, false);
+        FrozenModel model = nn.freeze();
+        Matrix2 expected = model.predict(X);
+
+        //Batches of up to 16 samples, the last requests are flushed by the deadline.
+        //Samples are copied by submit, so the input buffer can be reused and even overwritten right away
+        try (MicroBatcher batcher = new MicroBatcher(model, 16, 5, TimeUnit.MILLISECONDS)) {
+            List<CompletableFuture<Matrix2>> results = new ArrayList<>();
+            Matrix2 x = new Matrix2(X.rows(), 1);
+            for (int col = 0; col < X.cols(); col++) {
+                results.add(batcher.submit(Matrix2.copy(X.columnsView(col, col + 1), x)));
+                x.fill(Float.NaN);
+            }
+            for (int col = 0; col < X.cols(); col++) {
+                Matrix2 result = results.get(col).get(10, TimeUnit.SECONDS);
+                assertEquals(1, result.rows());
+                assertEquals(expected.get(0, col), result.get(0, 0), 0);
+            }
+        }
+    }
+
+    @Test
+    public void testSaveAndLoad() throws Exception {
+        Matrix2 X = Matrix2.random(4, 40, 2);
+        Matrix2 Y = X.sumRows().greater(0);
+        DeepNeuralNetwork nn = newBinaryClassifier(16, 20);
+        nn.train(X, Y, false);
+
+        Path path = Files.createTempFile("model", ".dnn");
+        try {
+            nn.save(path);
+            //128 bytes header and dimensions in the first 192 bytes, then 64 bytes aligned blocks of W and b
+            assertEquals(192 + (128 + 64) + (192 + 64) + (64 + 64), Files.size(path));
+
+            DeepNeuralNetwork loaded = DeepNeuralNetwork.load(path);
+            assertEquals(nn.getLayerCount(), loaded.getLayerCount());
+            assertEquals(true, loaded.isWarmStart());
+            for (int l = 0; l < nn.getLayerCount(); l++) {
+                assertSame(nn.getLayer(l).getActivation(), loaded.getLayer(l).getActivation());
+                assertMatrixEquals(nn.getLayer(l).getWeights(), loaded.getLayer(l).getWeights(), 0);
+                assertMatrixEquals(nn.getLayer(l).getBias(), loaded.getLayer(l).getBias(), 0);
+            }
+
+            FrozenModel model = FrozenModel.load(path);
+            Matrix2 AL = new Matrix2(1, 40);
+            assertMatrixEquals(nn.freeze().forward(X, new Matrix2(1, 40)), model.forward(X, AL), 0);
+
+            //A failed save leaves the previous file and no temporary one
+            DeepNeuralNetwork custom = new DeepNeuralNetwork(1, new int[]{4, 8, 1}, 16, 1, 0.1f, 0.01f,
+                    new ReluFunction(), DeepNeuralNetwork.SIGMOID, DeepNeuralNetwork.BINARY_CROSS_ENTROPY);
+            try {
+                custom.save(path);
+                fail();
+            } catch (IllegalArgumentException e) {
+                assertEquals(false, Files.exists(path.resolveSibling(path.getFileName() + ".tmp")));
+                assertEquals(192 + (128 + 64) + (192 + 64) + (64 + 64), Files.size(path));
+            }
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    public void testCheckpointResume() throws Exception {
+        Matrix2 X = Matrix2.random(4, 40, 2);
+        Matrix2 Y = X.sumRows().greater(0);
+        DeepNeuralNetwork full = newBinaryClassifier(16, 20);
+        full.train(X, Y, false);
+
+        Path dir = Files.createTempDirectory("checkpoints");
+        Path path = dir.resolve("checkpoint.dnn");
+        try {
+            //A run stopped after 10 epochs, with checkpoints at 4, 8 and 10
+            DeepNeuralNetwork stopped = newBinaryClassifier(16, 10);
+            stopped.setCheckpointInterval(4);
+            stopped.train(X, Y, false, path);
+            assertEquals(10, DeepNeuralNetwork.load(path).getTrainedEpochs());
+
+            //Resuming trains the remaining 10 epochs, same result as without interruption
+            DeepNeuralNetwork resumed = newBinaryClassifier(16, 20);
+            resumed.train(X, Y, false, path);
+            assertEquals(20, resumed.getTrainedEpochs());
+            assertEquals(20, DeepNeuralNetwork.load(path).getTrainedEpochs());
+            for (int l = 0; l < full.getLayerCount(); l++) {
+                assertMatrixEquals(full.getLayer(l).getWeights(), resumed.getLayer(l).getWeights(), 0);
+                assertMatrixEquals(full.getLayer(l).getBias(), resumed.getLayer(l).getBias(), 0);
+            }
+        } finally {
+            Files.deleteIfExists(path);
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void testCheckpointResumeOptimizerState() throws Exception {
+        Matrix2 X = Matrix2.random(4, 40, 2);
+        Matrix2 Y = X.sumRows().greater(0);
+        DeepNeuralNetwork full = newAdamClassifier(20);
+        full.train(X, Y, false);
+
+        Path dir = Files.createTempDirectory("checkpoints");
+        Path path = dir.resolve("checkpoint.dnn");
+        try {
+            newAdamClassifier(10).train(X, Y, false, path);
+
+            //Moments and step are restored, same result as without interruption
+            DeepNeuralNetwork resumed = newAdamClassifier(20);
+            resumed.train(X, Y, false, path);
+            for (int l = 0; l < full.getLayerCount(); l++) {
+                assertMatrixEquals(full.getLayer(l).getWeights(), resumed.getLayer(l).getWeights(), 0);
+                assertMatrixEquals(full.getLayer(l).getBias(), resumed.getLayer(l).getBias(), 0);
+            }
+
+            //Loading restores the optimizer with its settings
+            AdamOptimizer loaded = (AdamOptimizer) DeepNeuralNetwork.load(path).getOptimizer();
+            assertEquals(0.9f, loaded.getBeta1(), 0);
+            assertEquals(0.999f, loaded.getBeta2(), 0);
+            assertEquals(1e-8f, loaded.getEpsilon(), 0);
+
+            //The state of another optimizer, or the same one with other settings, can't be resumed
+            DeepNeuralNetwork otherBetas = newAdamClassifier(30);
+            otherBetas.setOptimizer(new AdamOptimizer(0.8f, 0.999f, 1e-8f));
+            DeepNeuralNetwork[] others = {newBinaryClassifier(16, 30), otherBetas};
+            for (DeepNeuralNetwork other : others) {
+                try {
+                    other.train(X, Y, false, path);
+                    fail("Resumed an Adam checkpoint with " + other.getOptimizer());
+                } catch (IllegalArgumentException e) {
+                    //Expected
+                }
+            }
+        } finally {
+            Files.deleteIfExists(path);
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void testWarmStartAndPartialFit() {
+        Matrix2 X = Matrix2.random(4, 40, 2);
+        Matrix2 Y = X.sumRows().greater(0);
+        DeepNeuralNetwork full = newBinaryClassifier(16, 20);
+        full.train(X, Y, false);
+
+        //10 epochs and 10 more with partialFit continue like a single run of 20
+        DeepNeuralNetwork incremental = newBinaryClassifier(16, 10);
+        incremental.train(X, Y, false);
+        incremental.partialFit(X, Y, 10);
+        assertEquals(20, incremental.getTrainedEpochs());
+        for (int l = 0; l < full.getLayerCount(); l++) {
+            assertMatrixEquals(full.getLayer(l).getWeights(), incremental.getLayer(l).getWeights(), 0);
+            assertMatrixEquals(full.getLayer(l).getBias(), incremental.getLayer(l).getBias(), 0);
+        }
+
+        //Train starts over unless warm start is set
+        DeepNeuralNetwork fresh = newBinaryClassifier(16, 10);
+        fresh.train(X, Y, false);
+        incremental.train(X, Y, false);
+        assertMatrixEquals(fresh.getLayer(0).getWeights(), incremental.getLayer(0).getWeights(), 0);
+        incremental.setWarmStart(true);
+        incremental.train(X, Y, false);
+        assertEquals(false, fresh.getLayer(0).getWeights().get(0, 0) == incremental.getLayer(0).getWeights().get(0, 0));
+    }
+
+    @Test
+    public void testOptimizers() {
+        Matrix2 X = Matrix2.random(4, 200, 2);
+        Matrix2 Y = X.sumRows().greater(0);
+        DeepNeuralNetwork sgd = newBinaryClassifier(16, 20);
+        sgd.train(X, Y, false);
+        float sgdCost = cost(sgd, X, Y);
+        
+        //Same epochs from the same initial parameters: momentum averages the same steps as SGD and adaptive
+        //learning rates get a much lower cost
+        Optimizer[] optimizers = {new MomentumOptimizer(), new RmsPropOptimizer(), new AdamOptimizer()};
+        float[] learningRates = {0.1f, 0.01f, 0.01f};
+        for (int i = 0; i < optimizers.length; i++) {
+            DeepNeuralNetwork nn = new DeepNeuralNetwork(1, new int[]{4, 8, 6, 1}, 16, 20, learningRates[i], 0.01f,
+                    DeepNeuralNetwork.RELU, DeepNeuralNetwork.SIGMOID, DeepNeuralNetwork.BINARY_CROSS_ENTROPY);
+            nn.setOptimizer(optimizers[i]);
+            assertSame(optimizers[i], nn.getOptimizer());
+            nn.train(X, Y, false);
+            float cost = cost(nn, X, Y);
+            if(optimizers[i] instanceof MomentumOptimizer) {
+                assertEquals(sgdCost, cost, 0.01f);
+            } else {
+                assertEquals(true, cost < sgdCost / 2);
+            }
+            
+            //State is reset when training starts over, so results are the same
+            Matrix2 W = Matrix2.copy(nn.getLayer(0).getWeights(), new Matrix2(8, 4));
+            nn.train(X, Y, false);
+            assertMatrixEquals(W, nn.getLayer(0).getWeights(), 0);
+        }
+    }
+    
+    private static float cost(DeepNeuralNetwork nn, Matrix2 X, Matrix2 Y) {
+        Matrix2 AL = nn.freeze().forward(X, new Matrix2(Y.rows(), Y.cols()));
+        return DeepNeuralNetwork.BINARY_CROSS_ENTROPY.computeCost(Y, AL);
+    }
+    
+    @Test
+    public void testTrainStepAllocatesNothing() {
+        assertTrainStepAllocatesNothing(newBinaryClassifier(16, 1));
+        DeepNeuralNetwork adam = new DeepNeuralNetwork(1, new int[]{4, 8, 6, 1}, 16, 1, 0.01f, 0.01f,
+                DeepNeuralNetwork.RELU, DeepNeuralNetwork.SIGMOID, DeepNeuralNetwork.BINARY_CROSS_ENTROPY);
+        adam.setOptimizer(new AdamOptimizer());
+        assertTrainStepAllocatesNothing(adam);
+    }
+
+    private static void assertTrainStepAllocatesNothing(DeepNeuralNetwork nn) {
+        //40 samples with mini-batches of 16: two complete ones and a short one of 8
+        Matrix2 X = Matrix2.random(4, 40, 2);
+        Matrix2 Y = X.sumRows().greater(0);
+        Matrix2[] batchesX = {X.columnsView(0, 16), X.columnsView(16, 32), X.columnsView(32, 40)};
+        Matrix2[] batchesY = {Y.columnsView(0, 16), Y.columnsView(16, 32), Y.columnsView(32, 40)};
+
+        ComputePool previousPool = ComputePool.bind(ComputePool.SERIAL);
+        try (MatrixArena arena = new MatrixArena()) {
+            nn.initializeTraining(X.cols());
+
+            //Warm-up, so everything is loaded and compiled
+            float cost = 0;
+            for (int i = 0; i < 5000; i++) {
+                cost += trainEpoch(nn, batchesX, batchesY, arena);
+            }
+
+            long overhead = allocatedBytes();
+            overhead = allocatedBytes() - overhead;
+            long before = allocatedBytes();
+            for (int i = 0; i < 100; i++) {
+                cost += trainEpoch(nn, batchesX, batchesY, arena);
+            }
+            long allocated = allocatedBytes() - before - overhead;
+
+            assertEquals(0, allocated);
+            assertEquals(false, Float.isNaN(cost));
+        } finally {
+            ComputePool.bind(previousPool);
+        }
+    }
+
+    private static DeepNeuralNetwork newAdamClassifier(int iterations) {
+        DeepNeuralNetwork nn = new DeepNeuralNetwork(1, new int[]{4, 8, 6, 1}, 16, iterations, 0.01f, 0.01f,
+                DeepNeuralNetwork.RELU, DeepNeuralNetwork.SIGMOID, DeepNeuralNetwork.BINARY_CROSS_ENTROPY);
+        nn.setOptimizer(new AdamOptimizer());
+        return nn;
+    }
+
+    private static DeepNeuralNetwork newBinaryClassifier(int miniBatchSize, int iterations) {
+        return new DeepNeuralNetwork(1, new int[]{4, 8, 6, 1}, miniBatchSize, iterations, 0.1f, 0.01f,
+                DeepNeuralNetwork.RELU, DeepNeuralNetwork.SIGMOID, DeepNeuralNetwork.BINARY_CROSS_ENTROPY);
+    }
+
+    private static void assertMatrixEquals(Matrix2 expected, Matrix2 actual, float delta) {
+        assertEquals(expected.rows(), actual.rows());
+        assertEquals(expected.cols(), actual.cols());
+        for (int row = 0; row < expected.rows(); row++) {
+            for (int col = 0; col < expected.cols(); col++) {
+                assertEquals(expected.get(row, col), actual.get(row, col), delta);
+            }
+        }
+    }
+
+    private static float trainEpoch(DeepNeuralNetwork nn, Matrix2[] batchesX, Matrix2[] batchesY, MatrixArena arena) {
+        float cost = 0;
+        for (int b = 0; b < batchesX.length; b++) {
+            cost += nn.trainStep(batchesX[b], batchesY[b], arena);
+        }
+        return cost;
+    }
+
+    private static long allocatedBytes() {
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+}
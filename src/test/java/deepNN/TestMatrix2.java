@@ -4,7 +4,11 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 
 /**
  * Unit tests for Matrix2 class
@@ -128,6 +132,94 @@ public class TestMatrix2 {
         assertEquals(expected, c);
     }
     
+    @Test
+    public void testMatrixMulBlocked() {
+        //Big enough to go through the packed path with partial blocks in every dimension
+        Matrix2 a = Matrix2.random(70, 300, 1);
+        Matrix2 b = Matrix2.random(300, 1100, 2);
+        Matrix2 c = Matrix2.mul(a, b);
+        assertEquals(a.rows(), c.rows());
+        assertEquals(b.cols(), c.cols());
+        for (int row = 0; row < c.rows(); row += 7) {
+            for (int col = 0; col < c.cols(); col += 13) {
+                float expected = 0;
+                for (int i = 0; i < a.cols(); i++) {
+                    expected += a.get(row, i) * b.get(i, col);
+                }
+                assertEquals(expected, c.get(row, col), 0.001f);
+            }
+        }
+    }
+    
+    @Test
+    public void testMatrixMulParallel() {
+        Matrix2 a = Matrix2.random(100, 300, 1);
+        Matrix2 b = Matrix2.random(300, 500, 2);
+        ForkJoinPool forkJoinPool = new ForkJoinPool(4);
+        try {
+            //Each tile is computed exactly like in the serial path
+            Matrix2 expected = Matrix2.mul(a, b, ComputePool.SERIAL);
+            Matrix2 res = Matrix2.mul(a, b, new ComputePool(forkJoinPool, 1000));
+            assertEquals(expected, res);
+        } finally {
+            forkJoinPool.shutdown();
+        }
+    }
+    
+    @Test
+    public void testParallelElementWiseAndReductions() {
+        Matrix2 a = Matrix2.random(300, 700, 1);
+        ComputePool previous = ComputePool.bind(ComputePool.SERIAL);
+        try {
+            Matrix2 relu = a.relu();
+            float sum = a.sum();
+            Matrix2 sumRows = a.sumRows();
+            Matrix2 maxPerColumn = a.maxPerColumn();
+            Matrix2 sumColumns = a.sumColumns();
+            
+            //Same results, bit by bit, no matter the number of threads
+            for (int threads : new int[]{2, 3, 8}) {
+                ForkJoinPool forkJoinPool = new ForkJoinPool(threads);
+                try {
+                    ComputePool.bind(new ComputePool(forkJoinPool, 1000));
+                    assertEquals(relu, a.relu());
+                    assertEquals(sum, a.sum(), 0);
+                    assertEquals(sumRows, a.sumRows());
+                    assertEquals(maxPerColumn, a.maxPerColumn());
+                    assertEquals(sumColumns, a.sumColumns());
+                } finally {
+                    forkJoinPool.shutdown();
+                }
+            }
+        } finally {
+            ComputePool.bind(previous);
+        }
+    }
+    
+    @Test
+    public void testMatrixMulTransposed() {
+        Matrix2 a = Matrix2.random(40, 70, 1);
+        Matrix2 b = Matrix2.random(40, 90, 2);
+        Matrix2 c = Matrix2.random(90, 70, 3);
+        assertEquals(a.transpose().mul(b), a.mulTransA(b));
+        assertEquals(a.mul(c.transpose()), a.mulTransB(c));
+    }
+    
+    @Test
+    public void testGemmFused() {
+        Matrix2 a = Matrix2.random(30, 50, 1);
+        Matrix2 b = Matrix2.random(30, 60, 2);
+        Matrix2 c = Matrix2.random(50, 60, 3);
+        Matrix2 bias = Matrix2.random(50, 1, 4);
+        Matrix2 expected = a.transpose().mul(b).mul(0.5f).add(c.mul(2)).add(bias.broadcastCol(60)).relu();
+        Matrix2 res = Matrix2.gemm(0.5f, a, true, b, false, 2, c, bias, Matrix2.ReluOp.INSTANCE);
+        for (int row = 0; row < res.rows(); row++) {
+            for (int col = 0; col < res.cols(); col++) {
+                assertEquals(expected.get(row, col), res.get(row, col), EPSILON);
+            }
+        }
+    }
+    
     @Test
     public void testMatrixMulElementWise() {
         Matrix2 a = new Matrix2(new float[][]{
@@ -273,4 +365,302 @@ public class TestMatrix2 {
         assertEquals(expected, res);
     }
     
+    @Test
+    public void testDestinationAndInPlace() {
+        Matrix2 a = new Matrix2(new float[][]{
+            {1, 2, 3},
+            {4, 5, 6}
+        });
+        Matrix2 dst = Matrix2.zeros(2, 3);
+        
+        //Into: result written in dst, source untouched
+        assertSame(dst, a.mulInto(2, dst));
+        assertEquals(a.mul(2), dst);
+        assertEquals(new Matrix2(new float[][]{{1, 2, 3}, {4, 5, 6}}), a);
+        assertEquals(a.add(a), a.addInto(a, dst));
+        assertEquals(a.transpose().mul(a), a.mulTransAInto(a, Matrix2.zeros(3, 3)));
+        assertEquals(a.sumColumns(), a.sumColumnsInto(Matrix2.zeros(2, 1)));
+        
+        //In place: result overwrites the matrix
+        Matrix2 b = a.add(0);
+        assertSame(b, b.subInPlace(a));
+        assertEquals(Matrix2.zeros(2, 3), b);
+        b.addScaledInPlace(a, 0.5f);
+        assertEquals(a.mul(0.5f), b);
+    }
+    
+    @Test
+    public void testBroadcastViews() {
+        Matrix2 a = new Matrix2(new float[][]{
+            {1, 5, 3},
+            {4, 2, 6}
+        });
+        
+        //Views read like the materialized matrix
+        Matrix2 max = a.maxPerColumn();
+        Matrix2 rowView = max.broadcastRow(2);
+        Matrix2 expected = new Matrix2(new float[][]{
+            {-3, 0, -3},
+            {0, -3, 0}
+        });
+        assertEquals(expected, a.sub(rowView));
+        assertEquals(max.broadcastRowInto(Matrix2.zeros(2, 3)), rowView);
+        assertEquals(a.divEW(a.sumRows().broadcastRowInto(Matrix2.zeros(2, 3))), a.divEW(a.sumRows().broadcastRow(2)));
+        
+        Matrix2 colView = Matrix2.columnVec(new float[]{10, 20}).broadcastCol(3);
+        assertEquals(new Matrix2(new float[][]{{10, 10, 10}, {20, 20, 20}}), colView);
+        assertEquals(a.add(colView), colView.add(a));
+        assertEquals(90, colView.sum(), EPSILON);
+        assertEquals(new Matrix2(new float[][]{{30}, {60}}), colView.sumColumns());
+        assertEquals(a.mul(new Matrix2(new float[][]{{10, 10}, {20, 20}, {30, 30}})), a.mul(Matrix2.columnVec(new float[]{10, 20, 30}).broadcastCol(2)));
+        
+        //Views share data with the vector
+        max.mulInPlace(2);
+        assertEquals(10, rowView.get(1, 1), EPSILON);
+    }
+    
+    @Test
+    public void testViews() {
+        Matrix2 a = new Matrix2(new float[][]{
+            {1, 2, 3, 4},
+            {5, 6, 7, 8},
+            {9, 10, 11, 12}
+        });
+        
+        //Views read like the copied matrix
+        assertEquals(a.transpose(), a.transposeView());
+        assertEquals(Matrix2.getColumns(a, new int[]{1, 2}), a.columnsView(1, 3));
+        assertEquals(Matrix2.getRows(a, new int[]{1, 2}), a.rowsView(1, 3));
+        Matrix2 block = a.blockView(1, 3, 1, 3);
+        assertEquals(new Matrix2(new float[][]{{6, 7}, {10, 11}}), block);
+        assertEquals(new Matrix2(new float[][]{{6, 10}, {7, 11}}), block.transposeView());
+        assertEquals(34, block.sum(), EPSILON);
+        assertEquals(new Matrix2(new float[][]{{16, 18}}), block.sumRows());
+        assertEquals(block.transpose().mul(block), block.transposeView().mul(block));
+        assertEquals(a.transpose().mul(a.columnsView(0, 2)), Matrix2.mulTransA(a, a.columnsView(0, 2)));
+        assertEquals(block.mul(2), block.add(block));
+        
+        //Writing into a view writes into the source
+        block.mulInPlace(-1);
+        assertEquals(-7, a.get(1, 2), EPSILON);
+        assertEquals(4, a.get(0, 3), EPSILON);
+        assertEquals(-11, a.transposeView().get(2, 2), EPSILON);
+        
+        //Columns are appended through views of the result
+        Matrix2 appended = Matrix2.appendColumns(Arrays.asList(a.columnsView(0, 1), a.columnsView(3, 4)));
+        assertEquals(Matrix2.getColumns(a, new int[]{0, 3}), appended);
+    }
+    
+    @Test
+    public void testColumnMajor() {
+        float[][] values = new float[][]{
+            {1, 2, 3, 4},
+            {5, 6, 7, 8},
+            {9, 10, 11, 12}
+        };
+        Matrix2 a = new Matrix2(values);
+        Matrix2 c = a.toLayout(Matrix2.Layout.COLUMN_MAJOR);
+        assertEquals(Matrix2.Layout.COLUMN_MAJOR, c.layout());
+        assertEquals(a, c);
+        assertEquals(7, c.get(1, 2), EPSILON);
+        
+        //Operations give the same results with any mix of layouts
+        assertEquals(Matrix2.Layout.COLUMN_MAJOR, c.exp().layout());
+        assertEquals(a.exp(), c.exp());
+        assertEquals(a.add(a), c.add(a));
+        assertEquals(a.add(a), a.add(c));
+        assertEquals(a.sumRows(), c.sumRows());
+        assertEquals(a.sumColumns(), c.sumColumns());
+        assertEquals(a.maxPerColumn(), c.maxPerColumn());
+        assertEquals(a.minPerRow(), c.minPerRow());
+        assertEquals(a.sum(), c.sum(), EPSILON);
+        assertEquals(a.mul(a.transpose()), c.mul(c.transposeView()));
+        assertEquals(a.mulTransA(a), c.mulTransA(a));
+        Matrix2 dst = new Matrix2(3, 3, Matrix2.Layout.COLUMN_MAJOR);
+        Matrix2 bias = Matrix2.columnVec(new float[]{1, 2, 3});
+        assertEquals(Matrix2.gemm(2, a, false, a, true, 0, null, bias, null), Matrix2.gemm(2, a, false, c, true, 0, null, bias, null, dst));
+        
+        //Columns are gathered and appended with array copies
+        int[] indices = new int[]{3, 0, 2};
+        assertEquals(Matrix2.getColumns(a, indices), Matrix2.getColumns(c, indices));
+        assertEquals(Matrix2.Layout.COLUMN_MAJOR, Matrix2.getColumns(c, indices).layout());
+        Matrix2 appended = Matrix2.appendColumns(Arrays.asList(a.columnsView(1, 3), a.columnsView(0, 1)), Matrix2.Layout.COLUMN_MAJOR);
+        assertEquals(Matrix2.getColumns(a, new int[]{1, 2, 0}), appended);
+        
+        //Transposed views of row-major matrices can be written column by column
+        a.transposeView().mulInPlace(2);
+        assertEquals(c.mul(2), a);
+    }
+    
+    @Test
+    public void testArena() {
+        Matrix2 a = Matrix2.random(20, 30, 1);
+        Matrix2 b = Matrix2.random(30, 10, 2);
+        Matrix2 expected = a.mul(b).relu().sumColumns();
+        
+        try (MatrixArena arena = new MatrixArena(1000)) {
+            MatrixArena previous = MatrixArena.bind(arena);
+            try {
+                for (int i = 0; i < 3; i++) {
+                    arena.reset();
+                    assertEquals(expected, a.mul(b).relu().sumColumns());
+                    assertEquals(Matrix2.zeros(4, 5), arena.allocate(4, 5, Matrix2.Layout.COLUMN_MAJOR));
+                }
+            } finally {
+                MatrixArena.bind(previous);
+            }
+            
+            //Slabs are reused after each reset
+            assertEquals(1000, arena.capacity());
+        }
+    }
+    
+    @Test
+    public void testOffHeapMatrix() {
+        Matrix2 a = new Matrix2(new float[][]{
+            {1, 2, 3, 4},
+            {5, 6, 7, 8},
+            {9, 10, 11, 12}
+        });
+        OffHeapMatrix offHeap = OffHeapMatrix.copyOf(a);
+        assertEquals(a, offHeap.toMatrix());
+        assertEquals(7, offHeap.get(1, 2), EPSILON);
+        
+        int[] indices = new int[]{3, 0, 2, 1};
+        assertEquals(Matrix2.getColumns(a, new int[]{0, 2}), offHeap.getColumns(indices, 1, 3));
+        assertEquals(Matrix2.getColumns(a, new int[]{3, 0}), offHeap.getColumns(indices, 0, 2, Matrix2.zeros(3, 2)));
+        
+        offHeap.setColumn(0, new float[]{-1, -2, -3});
+        assertEquals(-2, offHeap.get(1, 0), EPSILON);
+        
+        //Columns split in blocks of 3 and 1
+        OffHeapMatrix blocks = new OffHeapMatrix(3, 4, 3 * 3 * Float.BYTES);
+        for (int col = 0; col < 4; col++) {
+            blocks.setColumn(col, new float[]{a.get(0, col), a.get(1, col), a.get(2, col)});
+        }
+        assertEquals(a, blocks.toMatrix());
+        assertEquals(12, blocks.get(2, 3), EPSILON);
+        assertEquals(Matrix2.getColumns(a, new int[]{3, 0, 2}), blocks.getColumns(indices, 0, 3));
+    }
+    
+    @Test
+    public void testArgMaxAndTopKPerColumn() {
+        Matrix2 a = new Matrix2(new float[][]{
+            {1, 8, 3, 4},
+            {5, 6, 7, 4},
+            {9, 6, 2, 0}
+        });
+        
+        //Ties keep the first row
+        assertEquals("[2, 0, 1, 0]", Arrays.toString(Matrix2.argMaxPerColumn(a, new int[4], 0)));
+        assertEquals("[-1, 0, 1]", Arrays.toString(Matrix2.argMaxPerColumn(a.columnsView(1, 3), new int[]{-1, -1, -1}, 1)));
+        assertEquals("[2, 0, 1, 0]", Arrays.toString(Matrix2.argMaxPerColumn(a.transpose().transposeView(), new int[4], 0)));
+        
+        int[] indices = new int[8];
+        float[] scores = new float[8];
+        Matrix2.topKPerColumn(a, 2, indices, scores, 0);
+        assertEquals("[2, 1, 0, 1, 1, 0, 0, 1]", Arrays.toString(indices));
+        assertEquals("[9.0, 5.0, 8.0, 6.0, 7.0, 3.0, 4.0, 4.0]", Arrays.toString(scores));
+        
+        indices = new int[3];
+        Matrix2.topKPerColumn(a.transpose().transposeView().columnsView(0, 1), 3, indices, new float[3], 0);
+        assertEquals("[2, 1, 0]", Arrays.toString(indices));
+    }
+    
+    @Test
+    public void testFusedGradients() {
+        Matrix2 dA = Matrix2.random(30, 700, 1).sub(0.5f);
+        Matrix2 Z = Matrix2.random(30, 700, 2).sub(0.5f);
+        Matrix2 Y = Matrix2.random(30, 700, 3).greater(0.5f);
+        Matrix2 AL = Z.sigmoid();
+        Matrix2 dZ = new Matrix2(30, 700);
+        
+        //Same results as the unfused forms, serial and split across threads
+        ForkJoinPool forkJoinPool = new ForkJoinPool(3);
+        ComputePool previous = ComputePool.bind(ComputePool.SERIAL);
+        try {
+            for (ComputePool pool : new ComputePool[]{ComputePool.SERIAL, new ComputePool(forkJoinPool, 1000)}) {
+                ComputePool.bind(pool);
+                assertEquals(dA.mulEW(Z.greater(0)), Matrix2.reluGradient(dA, Z, dZ));
+                assertEquals(dA.mulEW(AL).mulEW(AL.oneMinus()), Matrix2.sigmoidGradient(dA, Z, dZ));
+                assertEquals(dA.mulEW(AL).mulEW(AL.oneMinus()), Matrix2.softmaxGradient(dA, Matrix2.copy(AL, dZ), dZ));
+                Matrix2 y = Matrix2.blockView(Y, 0, 1, 0, 700);
+                Matrix2 al = Matrix2.blockView(AL, 0, 1, 0, 700);
+                assertEquals(DeepNeuralNetwork.BINARY_CROSS_ENTROPY.computeCost(y, al),
+                        Matrix2.binaryCrossEntropy(y, al, new Matrix2(1, 700)).sum() * (-1f / 700), EPSILON);
+                assertEquals(DeepNeuralNetwork.BINARY_CROSS_ENTROPY.computeCostGradient(Y, AL),
+                        Matrix2.binaryCrossEntropyGradient(Y, AL, dZ));
+            }
+        } finally {
+            ComputePool.bind(previous);
+            forkJoinPool.shutdown();
+        }
+    }
+    
+    @Test
+    public void testOptimizerUpdates() {
+        Matrix2 grad = new Matrix2(new float[][]{{2, -2}});
+        
+        //v = 0.2, then 0.38
+        Matrix2 param = Matrix2.ones(1, 2);
+        Matrix2 velocity = Matrix2.zeros(1, 2);
+        Matrix2.momentumUpdate(param, grad, velocity, 0.1f, 0.9f);
+        Matrix2.momentumUpdate(param, grad, velocity, 0.1f, 0.9f);
+        assertEquals(0.38f, velocity.get(0, 0), EPSILON);
+        assertEquals(1 - 0.02f - 0.038f, param.get(0, 0), EPSILON);
+        assertEquals(1 + 0.02f + 0.038f, param.get(0, 1), EPSILON);
+        
+        //s = 0.4
+        param = Matrix2.ones(1, 2);
+        Matrix2 square = Matrix2.zeros(1, 2);
+        Matrix2.rmsPropUpdate(param, grad, square, 0.1f, 0.9f, 1e-8f);
+        assertEquals(0.4f, square.get(0, 1), EPSILON);
+        assertEquals(1 - 0.2f / (float) Math.sqrt(0.4f), param.get(0, 0), EPSILON);
+        
+        //The first bias corrected step moves each parameter by the learning rate
+        param = Matrix2.ones(1, 2);
+        Matrix2 m = Matrix2.zeros(1, 2);
+        Matrix2 v = Matrix2.zeros(1, 2);
+        Matrix2.adamUpdate(param, grad, m, v, 0.1f, 0.9f, 0.999f, 1e-8f, 1);
+        assertEquals(0.9f, param.get(0, 0), EPSILON);
+        assertEquals(1.1f, param.get(0, 1), EPSILON);
+        assertEquals(-0.2f, m.get(0, 1), EPSILON);
+        assertEquals(0.004f, v.get(0, 1), EPSILON);
+        
+        //Subnormal results are flushed to zero
+        param = new Matrix2(new float[][]{{Float.MIN_NORMAL, 1}});
+        Matrix2.momentumUpdate(param, Matrix2.ones(1, 2), Matrix2.zeros(1, 2), Float.MIN_NORMAL, 0.5f);
+        assertEquals(0, param.get(0, 0), 0);
+    }
+    
+    @Test(expected = RuntimeException.class)
+    public void testOptimizerUpdateNotPacked() {
+        Matrix2 param = Matrix2.ones(2, 3);
+        Matrix2.adamUpdate(param.transposeView(), Matrix2.ones(3, 2), Matrix2.zeros(3, 2), Matrix2.zeros(3, 2),
+                0.1f, 0.9f, 0.999f, 1e-8f, 1);
+    }
+    
+    @Test
+    public void testComputePoolBinding() {
+        //Restoring the previous binding of a thread without one clears it, so the thread follows the default again
+        ComputePool previous = ComputePool.bind(ComputePool.SERIAL);
+        assertSame(ComputePool.SERIAL, ComputePool.current());
+        assertSame(ComputePool.SERIAL, ComputePool.bind(previous));
+        assertEquals(null, previous);
+        assertSame(ComputePool.common(), ComputePool.current());
+        assertEquals(null, ComputePool.bind(null));
+    }
+    
+    @Test(expected = RuntimeException.class)
+    public void testBroadcastViewNotWritable() {
+        Matrix2 view = Matrix2.ones(1, 3).broadcastRow(2);
+        view.addInPlace(1);
+    }
+    
+    @Test(expected = RuntimeException.class)
+    public void testDestinationInvalidShape() {
+        Matrix2 a = Matrix2.ones(2, 3);
+        a.addInto(a, Matrix2.zeros(3, 2));
+    }
+    
 }